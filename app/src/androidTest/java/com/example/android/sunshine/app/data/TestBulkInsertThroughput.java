@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/*
+    Measures how fast WeatherProvider.bulkInsert writes a large batch of weather, next to the
+    per-row SQLiteDatabase.insert and WeatherContract.normalizeDate it used to go through.  The
+    rates are logged; what is asserted is that every row is written.
+ */
+public class TestBulkInsertThroughput extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertThroughput.class.getSimpleName();
+
+    private static final int ROWS = 10000;
+    // January 1st, 2014, in milliseconds
+    private static final long START_DATE = 1388534400000L;
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void setUp() {
+        deleteAllRecords();
+    }
+
+    public void tearDown() {
+        deleteAllRecords();
+    }
+
+    /*
+        One row per day, from START_DATE on, each a few hours into its day so that every date
+        has to be normalized.
+     */
+    private static ContentValues[] createWeatherValues(long locationRowId) {
+        ContentValues[] values = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    START_DATE + i * DateUtils.DAY_IN_MILLIS + 5 * DateUtils.HOUR_IN_MILLIS);
+        }
+        return values;
+    }
+
+    private long getWeatherRowCount() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        long count = DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                WeatherContract.WeatherEntry.TABLE_NAME);
+        dbHelper.close();
+        return count;
+    }
+
+    private static String rate(long elapsedMillis) {
+        return ROWS + " rows in " + elapsedMillis + "ms (" +
+                (ROWS * 1000L / Math.max(1, elapsedMillis)) + " rows/s)";
+    }
+
+    /*
+        The batch path normalizes dates its own way, so it had better agree with the contract,
+        daylight saving changes included.
+     */
+    public void testDateNormalizerMatchesContract() {
+        DateNormalizer dateNormalizer = new DateNormalizer();
+        for (long date = START_DATE; date < START_DATE + 2 * DateUtils.YEAR_IN_MILLIS;
+             date += 5 * DateUtils.HOUR_IN_MILLIS + 7 * DateUtils.MINUTE_IN_MILLIS) {
+            assertEquals("Error: Date " + date + " normalized differently",
+                    WeatherContract.normalizeDate(date), dateNormalizer.normalize(date));
+        }
+    }
+
+    public void testBulkInsertThroughput() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        // The way bulkInsert used to write the rows
+        ContentValues[] values = createWeatherValues(locationRowId);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                value.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+                db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(LOG_TAG, "SQLiteDatabase.insert: " + rate(SystemClock.elapsedRealtime() - start));
+        db.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        dbHelper.close();
+
+        values = createWeatherValues(locationRowId);
+        start = SystemClock.elapsedRealtime();
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, values);
+        Log.d(LOG_TAG, "bulkInsert, new rows: " + rate(SystemClock.elapsedRealtime() - start));
+        assertEquals("Error: Not every row was inserted", ROWS, insertCount);
+        assertEquals("Error: Wrong number of rows stored", ROWS, getWeatherRowCount());
+
+        // The same days again, which updates every row in place
+        values = createWeatherValues(locationRowId);
+        start = SystemClock.elapsedRealtime();
+        insertCount = mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, values);
+        Log.d(LOG_TAG, "bulkInsert, existing rows: " +
+                rate(SystemClock.elapsedRealtime() - start));
+        assertEquals("Error: Not every row was updated", ROWS, insertCount);
+        assertEquals("Error: Updating added rows", ROWS, getWeatherRowCount());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE},
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue("Error: No weather stored", cursor.moveToFirst());
+        assertEquals("Error: Date wasn't normalized",
+                WeatherContract.normalizeDate(START_DATE), cursor.getLong(0));
+        cursor.close();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/*
+    Measures how long the forecast list's query through the provider takes while a sync is
+    writing, with the write-ahead logging WeatherDbHelper sets up and in the rollback journal mode
+    the database used to be in.  The latencies are logged; what is asserted is that the database
+    is configured the way WeatherDbHelper means it to be, and that reads no longer wait for the
+    sync to commit.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final int LOCATIONS = 10;
+    private static final int DAYS = 14;
+    private static final int READS = 20;
+    // How long the writer keeps its transaction open after writing, standing in for the rest of
+    // a slow sync's batch.
+    private static final long WRITE_HOLD_MILLIS = 500;
+
+    // The forecast list's projection
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.WeatherEntry.COLUMN_FETCHED_AT
+    };
+    private static final String DATE_ORDER = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    private static class Result {
+        long[] latencyMicros = new long[READS];
+        int readsBeforeCommit;
+
+        long percentile(int percent) {
+            long[] sorted = latencyMicros.clone();
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+        }
+
+        @Override
+        public String toString() {
+            return "p50 " + percentile(50) + "us, p95 " + percentile(95) + "us, max " +
+                    percentile(100) + "us, " + readsBeforeCommit + "/" + READS +
+                    " reads answered before the write committed";
+        }
+    }
+
+    private ContentProviderClient mClient;
+    private WeatherProvider mProvider;
+    private long[] mLocationRowIds;
+
+    public void setUp() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+
+        mClient = mContext.getContentResolver().acquireContentProviderClient(
+                WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) mClient.getLocalContentProvider();
+
+        mLocationRowIds = new long[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    TestUtilities.TEST_LOCATION + i);
+            Uri uri = mContext.getContentResolver().insert(
+                    WeatherContract.LocationEntry.CONTENT_URI, location);
+            mLocationRowIds[i] = Long.parseLong(uri.getLastPathSegment());
+        }
+        writeForecasts(mProvider.getOpenHelper().getWritableDatabase());
+    }
+
+    public void tearDown() {
+        // Reopened on next use with the configuration WeatherDbHelper gives it, whatever the
+        // test changed.
+        mProvider.getOpenHelper().close();
+        mClient.release();
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        Writes every day of every location, the way a sync does.
+     */
+    private void writeForecasts(SQLiteDatabase db) {
+        for (long locationRowId : mLocationRowIds) {
+            for (int day = 0; day < DAYS; day++) {
+                ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        TestUtilities.TEST_DATE + day * 60 * 60 * 24);
+                db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weatherValues);
+            }
+        }
+    }
+
+    private Result measure(final SQLiteDatabase db) throws InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        final long[] commitStart = new long[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                db.beginTransactionNonExclusive();
+                try {
+                    writeForecasts(db);
+                    written.countDown();
+                    SystemClock.sleep(WRITE_HOLD_MILLIS);
+                    db.setTransactionSuccessful();
+                } finally {
+                    commitStart[0] = System.nanoTime();
+                    db.endTransaction();
+                }
+            }
+        };
+        writer.start();
+        written.await();
+
+        Result result = new Result();
+        long[] finishedAt = new long[READS];
+        Uri uri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION + 0, TestUtilities.TEST_DATE);
+        for (int i = 0; i < READS; i++) {
+            // Every read has to reach the database rather than the provider's cache of the last.
+            mProvider.getQueryCache().clear();
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(uri, FORECAST_COLUMNS, null, null,
+                    DATE_ORDER);
+            assertEquals("Error: Forecast list query returned the wrong number of days",
+                    DAYS, cursor.getCount());
+            cursor.close();
+            finishedAt[i] = System.nanoTime();
+            result.latencyMicros[i] = (finishedAt[i] - start) / 1000;
+        }
+        writer.join();
+        for (long finished : finishedAt) {
+            if (finished < commitStart[0]) {
+                result.readsBeforeCommit++;
+            }
+        }
+        return result;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void testWriteAheadLogConfiguration() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // WeatherDbHelper only turns on write-ahead logging from Jelly Bean on.
+            return;
+        }
+
+        SQLiteDatabase db = mProvider.getOpenHelper().getWritableDatabase();
+        assertTrue("Error: Write-ahead logging isn't enabled", db.isWriteAheadLoggingEnabled());
+        assertEquals("Error: The database isn't in write-ahead logging mode",
+                "wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+        assertEquals("Error: The write-ahead log's checkpoint interval wasn't set",
+                WeatherDbHelper.WAL_AUTOCHECKPOINT_PAGES,
+                DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null));
+        assertEquals("Error: The write-ahead log's size limit wasn't set",
+                WeatherDbHelper.WAL_SIZE_LIMIT_BYTES,
+                DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit", null));
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void testReadLatencyDuringSyncWrite() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+
+        SQLiteDatabase db = mProvider.getOpenHelper().getWritableDatabase();
+        Result writeAheadLog = measure(db);
+        Log.d(LOG_TAG, "Write-ahead log: " + writeAheadLog);
+
+        db.disableWriteAheadLogging();
+        Result rollbackJournal = measure(db);
+        Log.d(LOG_TAG, "Rollback journal: " + rollbackJournal);
+
+        assertEquals("Error: Reads waited for the write in write-ahead logging mode",
+                READS, writeAheadLog.readsBeforeCommit);
+        assertEquals("Error: Reads didn't wait for the write in rollback journal mode",
+                0, rollbackJournal.readsBeforeCommit);
+    }
+}
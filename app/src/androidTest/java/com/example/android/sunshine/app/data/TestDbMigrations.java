@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Upgrades every version the app has shipped with to the current one, and checks that the
+    forecast stored in it survives and that the schema ends up the same as a new install's.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    /*
+        The statements each version ran to build its schema, copied from the version that shipped
+        rather than taken from WeatherDbHelper, so that a change to a migration that has already
+        run on devices fails this test instead of being tested against itself.  A database of a
+        version ran all of the statements up to and including its own.
+     */
+    private static final String[][] SCHEMA_HISTORY = {
+            // 2
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY,location_setting TEXT UNIQUE " +
+                            "NOT NULL, city_name TEXT NOT NULL, coord_lat REAL NOT NULL, " +
+                            "coord_long REAL NOT NULL  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id " +
+                            "INTEGER NOT NULL, date INTEGER NOT NULL, short_desc TEXT NOT NULL, " +
+                            "weather_id INTEGER NOT NULL,min REAL NOT NULL, max REAL NOT NULL, " +
+                            "humidity REAL NOT NULL, pressure REAL NOT NULL, wind REAL NOT NULL, " +
+                            "degrees REAL NOT NULL,  FOREIGN KEY (location_id) REFERENCES " +
+                            "location (_id),  UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+            },
+            // 3
+            {
+                    "CREATE TABLE sync_log (_id INTEGER PRIMARY KEY AUTOINCREMENT,started " +
+                            "INTEGER NOT NULL, result TEXT NOT NULL, total_ms INTEGER NOT NULL, " +
+                            "fetch_ms INTEGER NOT NULL DEFAULT 0, connect_ms INTEGER NOT NULL " +
+                            "DEFAULT 0, download_ms INTEGER NOT NULL DEFAULT 0, diff_ms INTEGER " +
+                            "NOT NULL DEFAULT 0, write_ms INTEGER NOT NULL DEFAULT 0, widgets_ms " +
+                            "INTEGER NOT NULL DEFAULT 0, muzei_ms INTEGER NOT NULL DEFAULT 0, " +
+                            "notification_ms INTEGER NOT NULL DEFAULT 0, wearable_ms INTEGER NOT " +
+                            "NULL DEFAULT 0, locations INTEGER NOT NULL DEFAULT 0, requests " +
+                            "INTEGER NOT NULL DEFAULT 0, wire_bytes INTEGER NOT NULL DEFAULT 0, " +
+                            "decoded_bytes INTEGER NOT NULL DEFAULT 0, rows_written INTEGER NOT " +
+                            "NULL DEFAULT 0, rows_deleted INTEGER NOT NULL DEFAULT 0);",
+                    "CREATE TRIGGER sync_log_ring AFTER INSERT ON sync_log BEGIN DELETE FROM " +
+                            "sync_log WHERE _id <= NEW._id - 50; END;"
+            },
+            // 4
+            {
+                    "CREATE TABLE weather_condition (_id INTEGER PRIMARY KEY,weather_id INTEGER " +
+                            "NOT NULL, short_desc TEXT NOT NULL,  UNIQUE (weather_id, " +
+                            "short_desc));",
+                    "CREATE TABLE hourly (_id INTEGER PRIMARY KEY,location_id INTEGER NOT NULL, " +
+                            "time INTEGER NOT NULL, condition_id INTEGER NOT NULL, temp INTEGER " +
+                            "NOT NULL, humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, " +
+                            "wind INTEGER NOT NULL, degrees INTEGER NOT NULL,  FOREIGN KEY " +
+                            "(location_id) REFERENCES location (_id),  FOREIGN KEY " +
+                            "(condition_id) REFERENCES weather_condition (_id),  UNIQUE " +
+                            "(location_id, time) ON CONFLICT REPLACE);"
+            },
+            // 5
+            {
+                    "ALTER TABLE weather ADD COLUMN fetched_at INTEGER NOT NULL DEFAULT 0"
+            }
+    };
+
+    public void setUp() {
+        // Nothing should come back from the file cache behind the migrations' back.
+        ForecastFileCache.clear(mContext);
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    public void tearDown() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    /*
+        Builds the database as the given version left it, from the statements it shipped with,
+        with a location and a day of weather in it.
+     */
+    private void createFixture(int version) {
+        File path = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        for (int i = 0; i <= version - WeatherDbHelper.BASE_VERSION; i++) {
+            for (String statement : SCHEMA_HISTORY[i]) {
+                db.execSQL(statement);
+            }
+        }
+
+        long locationRowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        assertTrue("Error: Failure to insert North Pole Location Values", locationRowId != -1);
+        long weatherRowId = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                TestUtilities.createWeatherValues(locationRowId));
+        assertTrue("Error: Failure to insert Weather Values", weatherRowId != -1);
+
+        db.setVersion(version);
+        db.close();
+    }
+
+    /*
+        The definition of every table, index and trigger in the database, in a stable order.
+     */
+    private static List<String> getSchema(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master" +
+                " WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'" +
+                " ORDER BY type, name", null);
+        List<String> schema = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            schema.add(cursor.getString(0) + " " + cursor.getString(1) + ": " +
+                    cursor.getString(2));
+        }
+        cursor.close();
+        return schema;
+    }
+
+    private List<String> getCurrentSchema() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        List<String> schema = getSchema(db);
+        dbHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        return schema;
+    }
+
+    public void testMigrationsReachCurrentVersion() {
+        WeatherDbHelper.Migration[] migrations = WeatherDbHelper.MIGRATIONS;
+        int version = WeatherDbHelper.BASE_VERSION;
+        for (WeatherDbHelper.Migration migration : migrations) {
+            assertEquals("Error: Migrations must go one version at a time, in order",
+                    version + 1, migration.version);
+            version = migration.version;
+        }
+        assertEquals("Error: The last migration isn't to DATABASE_VERSION",
+                WeatherDbHelper.DATABASE_VERSION, version);
+    }
+
+    public void testSchemaHistoryCoversEveryVersion() {
+        assertEquals("Error: Every version before DATABASE_VERSION needs its schema frozen here",
+                WeatherDbHelper.DATABASE_VERSION - WeatherDbHelper.BASE_VERSION,
+                SCHEMA_HISTORY.length);
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        List<String> currentSchema = getCurrentSchema();
+
+        for (int version = WeatherDbHelper.BASE_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            createFixture(version);
+
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            assertEquals("Error: Database wasn't upgraded from version " + version,
+                    WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+            assertEquals("Error: Schema upgraded from version " + version +
+                    " differs from a new database's", currentSchema, getSchema(db));
+
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    null, null, null, null, null, null);
+            TestUtilities.validateCursor("Error: Location lost upgrading from version " +
+                    version, cursor, TestUtilities.createNorthPoleLocationValues());
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            // Weather from before fetch times were kept counts as stale.
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT, 0);
+            cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    null, null, null, null, null, null);
+            TestUtilities.validateCursor("Error: Weather lost upgrading from version " +
+                    version, cursor, weatherValues);
+
+            dbHelper.close();
+            mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        }
+    }
+
+    /*
+        A database older than the oldest version we can migrate is started over.
+     */
+    public void testUpgradeFromUnknownVersion() {
+        createFixture(WeatherDbHelper.BASE_VERSION);
+        File path = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        SQLiteDatabase fixture = SQLiteDatabase.openDatabase(path.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        fixture.setVersion(WeatherDbHelper.BASE_VERSION - 1);
+        fixture.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertEquals("Error: Database too old to migrate wasn't started over",
+                0, cursor.getCount());
+        cursor.close();
+        dbHelper.close();
+    }
+}
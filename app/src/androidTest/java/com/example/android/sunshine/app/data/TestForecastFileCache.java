@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestForecastFileCache extends AndroidTestCase {
+
+    public void setUp() {
+        ForecastFileCache.clear(mContext);
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    public void tearDown() {
+        ForecastFileCache.clear(mContext);
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    /*
+        The test weather values, with every column typed the way it is read back.
+     */
+    private static ContentValues createDayValues() {
+        ContentValues day = TestUtilities.createWeatherValues(0);
+        day.remove(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        day.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75.0);
+        day.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 65.0);
+        day.put(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT, 1419030000000L);
+        return day;
+    }
+
+    /*
+        A file reads back exactly what was written to it.
+     */
+    public void testWriteAndRead() throws IOException {
+        File file = ForecastFileCache.getFile(mContext, TestUtilities.TEST_LOCATION);
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        List<ContentValues> days = new ArrayList<ContentValues>();
+        days.add(createDayValues());
+        ForecastFileCache.write(file, location, days);
+
+        ContentValues readLocation = new ContentValues();
+        List<ContentValues> readDays = new ArrayList<ContentValues>();
+        assertTrue("Error: File written in the current format wasn't read",
+                ForecastFileCache.read(file, readLocation, readDays));
+        assertEquals("Error: Location read back differs", location, readLocation);
+        assertEquals("Error: Wrong number of days read back", 1, readDays.size());
+        assertEquals("Error: Day read back differs", days.get(0), readDays.get(0));
+    }
+
+    /*
+        A file in another format is refused rather than misread, and a cut-off one is an error.
+     */
+    public void testUnreadableFiles() throws IOException {
+        File file = ForecastFileCache.getFile(mContext, TestUtilities.TEST_LOCATION);
+        List<ContentValues> days = new ArrayList<ContentValues>();
+        days.add(createDayValues());
+        ForecastFileCache.write(file, TestUtilities.createNorthPoleLocationValues(), days);
+
+        // Cut the file off in the middle of the day
+        long length = file.length();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.getChannel().truncate(length - 8);
+        } finally {
+            out.close();
+        }
+        try {
+            ForecastFileCache.read(file, new ContentValues(), new ArrayList<ContentValues>());
+            fail("Error: Truncated file was read");
+        } catch (IOException e) {
+            // expected
+        }
+
+        out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        } finally {
+            out.close();
+        }
+        assertFalse("Error: File in another format was read",
+                ForecastFileCache.read(file, new ContentValues(), new ArrayList<ContentValues>()));
+    }
+
+    /*
+        A forecast saved from the provider is back in the tables as soon as the database is
+        created again.
+     */
+    public void testRestoreOnCreate() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues weatherValues = createDayValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+        mContext.getContentResolver().insert(WeatherContract.WeatherEntry.CONTENT_URI,
+                weatherValues);
+
+        ForecastFileCache.save(mContext, TestUtilities.TEST_LOCATION);
+        assertTrue("Error: Forecast file wasn't written",
+                ForecastFileCache.getFile(mContext, TestUtilities.TEST_LOCATION).exists());
+
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.query(
+                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME + " ON " +
+                        WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = " +
+                        WeatherContract.LocationEntry.TABLE_NAME + "." +
+                        WeatherContract.LocationEntry._ID,
+                null, null, null, null, null, null);
+
+        weatherValues.remove(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        TestUtilities.validateCursor("Error: Forecast wasn't restored", cursor, weatherValues);
+        db.close();
+    }
+}
@@ -16,11 +16,14 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
@@ -30,6 +33,8 @@ import android.util.Log;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,6 +61,11 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -512,4 +522,484 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        This test checks that writing a forecast over the one already stored updates the rows in
+        place, rather than replacing them with new rows that have new ids.
+     */
+    public void testBulkInsertKeepsRowIds() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+        long[] firstIds = getWeatherRowIds();
+
+        // The same days again, with a different forecast for each of them
+        for (ContentValues weatherValues : bulkInsertContentValues) {
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                bulkInsertContentValues);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        long[] secondIds = getWeatherRowIds();
+        assertEquals("Error: Rewriting the forecast should not add rows",
+                firstIds.length, secondIds.length);
+        for (int i = 0; i < firstIds.length; i++) {
+            assertEquals("Error: Rewriting the forecast changed the id of row " + i,
+                    firstIds[i], secondIds[i]);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testBulkInsertKeepsRowIds.  Error validating WeatherEntry " + i,
+                    cursor, bulkInsertContentValues[i]);
+        }
+        cursor.close();
+    }
+
+    private long[] getWeatherRowIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /*
+        This test applies a location and its weather as one batch, with the weather referring to
+        the location by the id its insert comes back with, the way the sync adapter writes.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+        for (ContentValues values : weatherValues) {
+            values.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(operations.size(), results.length);
+        long locationRowId = ContentUris.parseId(results[0].uri);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            weatherValues[i].put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            TestUtilities.validateCurrentRecord("testApplyBatch.  Error validating WeatherEntry " + i,
+                    cursor, weatherValues[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        This test applies a batch that adds a location someone else has stored since the caller
+        looked for it.  The batch should write the weather to the stored location, not fail.
+     */
+    public void testApplyBatchWithStoredLocation() throws Exception {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+        for (ContentValues values : weatherValues) {
+            values.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+        assertEquals("Error: The batch should have come back with the stored location",
+                locationRowId, ContentUris.parseId(results[0].uri));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: The location should only be stored once", 1, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                LocationEntry.buildLocationWeatherUri(locationRowId), null, null, null, null);
+        assertEquals("Error: The weather should have been written to the stored location",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        This test checks that asking for a location's weather by its row ID gives the same rows
+        as asking by its location setting.
+     */
+    public void testWeatherByLocationIdQuery() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        Cursor byIdCursor = mContext.getContentResolver().query(
+                LocationEntry.buildLocationWeatherUri(locationRowId),
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, byIdCursor.getCount());
+        byIdCursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, byIdCursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testWeatherByLocationIdQuery.  Error validating WeatherEntry " + i,
+                    byIdCursor, bulkInsertContentValues[i]);
+        }
+        byIdCursor.close();
+
+        // A weather-only projection by location setting takes the same path
+        Cursor bySettingCursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID, WeatherEntry.COLUMN_DATE},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals("Error: Weather by location setting and by location id differ",
+                BULK_INSERT_RECORDS_TO_INSERT, bySettingCursor.getCount());
+        bySettingCursor.close();
+    }
+
+    /*
+        This test checks that the sync log only keeps the most recent entries.
+     */
+    public void testSyncLogKeepsLastEntries() {
+        mContext.getContentResolver().delete(WeatherContract.SyncLogEntry.CONTENT_URI, null, null);
+
+        int entryCount = WeatherContract.SyncLogEntry.MAX_ENTRIES + 5;
+        for (int i = 0; i < entryCount; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherContract.SyncLogEntry.COLUMN_STARTED, TestUtilities.TEST_DATE + i);
+            values.put(WeatherContract.SyncLogEntry.COLUMN_RESULT, "ok");
+            values.put(WeatherContract.SyncLogEntry.COLUMN_TOTAL_MS, i);
+            mContext.getContentResolver().insert(WeatherContract.SyncLogEntry.CONTENT_URI, values);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncLogEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncLogEntry.COLUMN_TOTAL_MS},
+                null,
+                null,
+                WeatherContract.SyncLogEntry._ID + " ASC"
+        );
+        assertEquals("Error: The sync log should only keep the last entries",
+                WeatherContract.SyncLogEntry.MAX_ENTRIES, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: The sync log dropped the wrong entries",
+                entryCount - WeatherContract.SyncLogEntry.MAX_ENTRIES, cursor.getLong(0));
+        cursor.close();
+    }
+
+    private static final long HOURLY_PERIOD_SECONDS = 3 * 60 * 60;
+
+    /*
+        The 3-hour forecast for the location from startTime on, alternating between two
+        conditions.
+     */
+    private static ContentValues[] createHourlyValues(long locationRowId, long startTime,
+                                                      int periodCount) {
+        final long periodSeconds = HOURLY_PERIOD_SECONDS;
+        ContentValues[] hourlyValues = new ContentValues[periodCount];
+        for (int i = 0; i < periodCount; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            values.put(WeatherContract.HourlyEntry.COLUMN_TIME, startTime + i * periodSeconds);
+            values.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.toFixedPoint(-12.34 + i,
+                            WeatherContract.HourlyEntry.TEMP_SCALE));
+            values.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, 80);
+            values.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                    WeatherContract.HourlyEntry.toFixedPoint(1013.2,
+                            WeatherContract.HourlyEntry.PRESSURE_SCALE));
+            values.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyEntry.toFixedPoint(3.25,
+                            WeatherContract.HourlyEntry.WIND_SPEED_SCALE));
+            values.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, 270);
+            // Two conditions, alternating
+            values.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, i % 2 == 0 ? 800 : 500);
+            values.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, i % 2 == 0 ? "Clear" : "Rain");
+            hourlyValues[i] = values;
+        }
+        return hourlyValues;
+    }
+
+    /*
+        This test checks that the 3-hour forecast is stored in fixed point with its conditions
+        deduplicated, that a newer reading for a period replaces the older one, and that a range
+        query for a location returns just the periods in the range.
+     */
+    public void testHourlyBulkInsertAndRangeQuery() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        final int periodCount = 40;
+        final long periodSeconds = HOURLY_PERIOD_SECONDS;
+        final long startTime = TestUtilities.TEST_DATE;
+        ContentValues[] hourlyValues = createHourlyValues(locationRowId, startTime, periodCount);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                WeatherContract.HourlyEntry.CONTENT_URI, hourlyValues);
+        assertEquals(periodCount, insertCount);
+
+        // A second sync with the same periods replaces them rather than adding to them
+        mContext.getContentResolver().bulkInsert(
+                WeatherContract.HourlyEntry.CONTENT_URI, hourlyValues);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                new String[]{WeatherContract.HourlyEntry.TABLE_NAME + "." + WeatherContract.HourlyEntry._ID},
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: Replaced periods were stored twice", periodCount, cursor.getCount());
+        cursor.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        assertEquals("Error: The conditions weren't deduplicated", 2,
+                DatabaseUtils.queryNumEntries(db, WeatherContract.ConditionEntry.TABLE_NAME));
+        dbHelper.close();
+
+        // The first day's 8 periods
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocationWithRange(TestUtilities.TEST_LOCATION,
+                        startTime, startTime + 8 * periodSeconds),
+                new String[]{WeatherContract.HourlyEntry.COLUMN_TIME,
+                        WeatherContract.HourlyEntry.COLUMN_TEMP,
+                        WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                        WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+                        WeatherContract.HourlyEntry.COLUMN_SHORT_DESC},
+                null,
+                null,
+                WeatherContract.HourlyEntry.COLUMN_TIME + " ASC"
+        );
+        assertEquals("Error: The range query returned the wrong periods", 8, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(startTime, cursor.getLong(0));
+        assertEquals("Error: The temperature didn't survive fixed point", -12.34,
+                WeatherContract.HourlyEntry.fromFixedPoint(cursor.getLong(1),
+                        WeatherContract.HourlyEntry.TEMP_SCALE), 0.005);
+        assertEquals("Error: The wind speed didn't survive fixed point", 3.25,
+                WeatherContract.HourlyEntry.fromFixedPoint(cursor.getLong(2),
+                        WeatherContract.HourlyEntry.WIND_SPEED_SCALE), 0.005);
+        assertEquals(800, cursor.getInt(3));
+        assertEquals("Clear", cursor.getString(4));
+        assertTrue(cursor.moveToNext());
+        assertEquals("Rain", cursor.getString(4));
+        cursor.close();
+    }
+
+    /*
+        This test checks that deleting a location deletes its 3-hour forecast, and only its.
+     */
+    public void testDeleteLocationDeletesHourly() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "94043");
+        Uri otherLocationUri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, otherLocation);
+        long otherLocationRowId = Long.parseLong(otherLocationUri.getLastPathSegment());
+
+        mContext.getContentResolver().bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI,
+                createHourlyValues(locationRowId, TestUtilities.TEST_DATE, 8));
+        mContext.getContentResolver().bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI,
+                createHourlyValues(otherLocationRowId, TestUtilities.TEST_DATE, 8));
+
+        TestUtilities.TestContentObserver hourlyObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.HourlyEntry.CONTENT_URI, true, hourlyObserver);
+
+        int deleted = mContext.getContentResolver().delete(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION});
+        assertEquals(1, deleted);
+        hourlyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                new String[]{WeatherContract.HourlyEntry.COLUMN_LOC_KEY},
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: The deleted location's 3-hour forecast was left behind",
+                8, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals("Error: Another location's 3-hour forecast was deleted",
+                    otherLocationRowId, cursor.getLong(0));
+        }
+        cursor.close();
+    }
+
+    /*
+        This test checks that days are stored as stale until the sync records when it fetched
+        them, and that recording it updates only the days asked for without telling observers,
+        since nothing they show has changed.
+     */
+    public void testUpdateFetchTime() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_FETCHED_AT},
+                WeatherEntry.COLUMN_FETCHED_AT + " = 0",
+                null,
+                null
+        );
+        assertEquals("Error: Days inserted without a fetch time should count as stale",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        long fetchedAt = System.currentTimeMillis();
+        ContentValues fetchTimeValues = new ContentValues();
+        fetchTimeValues.put(WeatherEntry.COLUMN_FETCHED_AT, fetchedAt);
+        int rowsUpdated = mContext.getContentResolver().update(
+                WeatherEntry.CONTENT_URI,
+                fetchTimeValues,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(locationRowId),
+                        Long.toString(bulkInsertContentValues[2].getAsLong(WeatherEntry.COLUMN_DATE))}
+        );
+        assertEquals("Error: The fetch time should have been recorded for the first 3 days",
+                3, rowsUpdated);
+
+        // Give a notification time to arrive, if one was wrongly sent
+        Thread.sleep(500);
+        assertFalse("Error: Recording the fetch time shouldn't notify observers",
+                weatherObserver.mContentChanged);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        weatherObserver.mHT.quit();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_FETCHED_AT},
+                WeatherEntry.COLUMN_FETCHED_AT + " = ?",
+                new String[]{Long.toString(fetchedAt)},
+                null
+        );
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        This test checks that a weather write only tells the observers of the location and date
+        it changed, and observers of all weather, not those of other locations.
+     */
+    public void testNotificationsScopedToLocation() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        String otherLocation = "94043";
+        ContentValues otherLocationValues = TestUtilities.createNorthPoleLocationValues();
+        otherLocationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, otherLocation);
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocationValues);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, weatherObserver);
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE), true, dayObserver);
+        TestUtilities.TestContentObserver otherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(otherLocation), true, otherObserver);
+
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(locationRowId));
+
+        weatherObserver.waitForNotificationOrFail();
+        dayObserver.waitForNotificationOrFail();
+        // Give a notification time to arrive, if one was wrongly sent
+        Thread.sleep(500);
+        assertFalse("Error: Weather written for one location shouldn't notify another's observers",
+                otherObserver.mContentChanged);
+
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherObserver);
+        otherObserver.mHT.quit();
+    }
+
+    /*
+        This test checks that writes made with deferNotifications tell observers nothing until
+        the notifications are flushed.
+     */
+    public void testDeferredNotifications() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The flush is made with ContentResolver.call
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        Uri deferredUri = WeatherContract.deferNotifications(WeatherEntry.CONTENT_URI);
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(deferredUri, bulkInsertContentValues);
+        mContext.getContentResolver().delete(deferredUri,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{bulkInsertContentValues[0].getAsString(WeatherEntry.COLUMN_DATE)});
+
+        Thread.sleep(500);
+        assertFalse("Error: Deferred writes shouldn't notify observers before the flush",
+                weatherObserver.mContentChanged);
+
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_FLUSH_NOTIFICATIONS, null, null);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+    }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+    Checks the plan SQLite picks for the query behind every uri the provider matches, so that a
+    query that stops using its index, and starts scanning the table instead, fails here rather
+    than going unnoticed on a device with a lot of weather stored.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    // ForecastFragment.FORECAST_COLUMNS
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.WeatherEntry.COLUMN_FETCHED_AT
+    };
+
+    private static final String DATE_ORDER = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    private ContentProviderClient mClient;
+    private WeatherProvider mProvider;
+
+    public void setUp() {
+        mClient = mContext.getContentResolver().acquireContentProviderClient(
+                WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) mClient.getLocalContentProvider();
+    }
+
+    public void tearDown() {
+        mClient.release();
+    }
+
+    private List<String> explain(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        Cursor cursor = mProvider.explainQuery(uri, projection, selection, selectionArgs,
+                sortOrder);
+        List<String> plan = new ArrayList<String>();
+        int detailColumn = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            plan.add(cursor.getString(detailColumn));
+        }
+        cursor.close();
+        assertFalse("Error: No plan for " + uri, plan.isEmpty());
+        return plan;
+    }
+
+    /*
+        Older versions of SQLite say "SEARCH TABLE weather", newer ones "SEARCH weather".
+     */
+    private static Pattern step(String operation, String table, String rest) {
+        return Pattern.compile("^" + operation + " (TABLE )?" + table + "( |$)" + rest);
+    }
+
+    private static boolean hasStep(List<String> plan, Pattern step) {
+        for (String detail : plan) {
+            if (step.matcher(detail).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void assertSearches(List<String> plan, String table) {
+        assertTrue("Error: " + table + " isn't searched by an index: " + plan,
+                hasStep(plan, step("SEARCH", table, "")));
+        assertFalse("Error: " + table + " is scanned: " + plan,
+                hasStep(plan, step("SCAN", table, "")));
+    }
+
+    private static void assertSearchesIndex(List<String> plan, String table, String index,
+                                            boolean covering) {
+        assertSearches(plan, table);
+        String using = covering ? "USING COVERING INDEX " : "USING (COVERING )?INDEX ";
+        assertTrue("Error: " + table + " isn't searched by " + index + ": " + plan,
+                hasStep(plan, step("SEARCH", table, ".*" + using + index + "\\b")));
+    }
+
+    private static void assertNoSort(List<String> plan) {
+        for (String detail : plan) {
+            assertFalse("Error: Rows are sorted after they are read: " + plan,
+                    detail.contains("TEMP B-TREE"));
+        }
+    }
+
+    /*
+        The forecast list reads from today on, and should be answered from the location's
+        unique index and the covering index alone, already in date order.
+     */
+    public void testForecastList() {
+        List<String> plan = explain(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE),
+                FORECAST_COLUMNS, null, null, DATE_ORDER);
+        assertSearches(plan, WeatherContract.LocationEntry.TABLE_NAME);
+        assertSearchesIndex(plan, WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE, true);
+        assertNoSort(plan);
+
+        plan = explain(WeatherContract.WeatherEntry.buildWeatherLocation(
+                TestUtilities.TEST_LOCATION), FORECAST_COLUMNS, null, null, DATE_ORDER);
+        assertSearches(plan, WeatherContract.LocationEntry.TABLE_NAME);
+        assertSearchesIndex(plan, WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE, true);
+        assertNoSort(plan);
+    }
+
+    /*
+        WEATHER_WITH_LOCATION with only weather columns goes by location id, without the join.
+     */
+    public void testWeatherWithLocationWithoutJoin() {
+        List<String> plan = explain(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE,
+                        WeatherContract.WeatherEntry.COLUMN_FETCHED_AT},
+                null, null, null);
+        assertSearchesIndex(plan, WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE, true);
+    }
+
+    public void testWeatherWithLocationAndDate() {
+        Uri uri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+
+        List<String> plan = explain(uri, null, null, null, null);
+        assertSearches(plan, WeatherContract.LocationEntry.TABLE_NAME);
+        assertSearches(plan, WeatherContract.WeatherEntry.TABLE_NAME);
+
+        plan = explain(uri, new String[]{WeatherContract.WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, null);
+        assertSearches(plan, WeatherContract.WeatherEntry.TABLE_NAME);
+    }
+
+    public void testWeatherWithLocationId() {
+        List<String> plan = explain(
+                WeatherContract.LocationEntry.buildLocationWeatherWithStartDate(1,
+                        TestUtilities.TEST_DATE),
+                null, null, null, DATE_ORDER);
+        assertSearchesIndex(plan, WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE, false);
+        assertNoSort(plan);
+    }
+
+    /*
+        The selections the sync adapter uses on the weather uri.
+     */
+    public void testWeather() {
+        List<String> plan = explain(WeatherContract.WeatherEntry.CONTENT_URI, null,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ?",
+                new String[]{"1", "0", Long.toString(TestUtilities.TEST_DATE)}, null);
+        assertSearchesIndex(plan, WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE, false);
+
+        plan = explain(WeatherContract.WeatherEntry.CONTENT_URI, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(TestUtilities.TEST_DATE)}, null);
+        assertSearches(plan, WeatherContract.WeatherEntry.TABLE_NAME);
+    }
+
+    public void testLocation() {
+        List<String> plan = explain(WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION}, null);
+        assertSearches(plan, WeatherContract.LocationEntry.TABLE_NAME);
+    }
+
+    public void testHourly() {
+        List<String> plan = explain(WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE,
+                TestUtilities.TEST_DATE + 60 * 60 * 24), null, null, null,
+                WeatherContract.HourlyEntry.COLUMN_TIME + " ASC");
+        assertSearches(plan, WeatherContract.HourlyEntry.TABLE_NAME);
+        assertSearches(plan, WeatherContract.ConditionEntry.TABLE_NAME);
+        assertNoSort(plan);
+
+        // Every period is wanted, but each still finds its condition by key.
+        plan = explain(WeatherContract.HourlyEntry.CONTENT_URI, null, null, null, null);
+        assertSearches(plan, WeatherContract.ConditionEntry.TABLE_NAME);
+    }
+
+    /*
+        The sync log is read newest first, which is its rowid order backwards.
+     */
+    public void testSyncLog() {
+        List<String> plan = explain(WeatherContract.SyncLogEntry.CONTENT_URI, null, null, null,
+                WeatherContract.SyncLogEntry._ID + " DESC");
+        assertNoSort(plan);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+/*
+    Checks that the provider answers repeated weather queries from its query cache, and that a
+    write only drops the cached queries of the location and dates it changed.
+ */
+public class TestQueryResultCache extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "94043";
+    private static final String[] DETAIL_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP
+    };
+    private static final String DATE_ORDER = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    private ContentProviderClient mClient;
+    private QueryResultCache mCache;
+    private long mLocationRowId;
+    private long mOtherLocationRowId;
+
+    public void setUp() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+
+        mClient = mContext.getContentResolver().acquireContentProviderClient(
+                WeatherContract.CONTENT_AUTHORITY);
+        mCache = ((WeatherProvider) mClient.getLocalContentProvider()).getQueryCache();
+
+        mLocationRowId = insertLocation(TestUtilities.TEST_LOCATION);
+        mOtherLocationRowId = insertLocation(OTHER_LOCATION);
+        insertWeather(mLocationRowId, TestUtilities.TEST_DATE, "Asteroids");
+        insertWeather(mOtherLocationRowId, TestUtilities.TEST_DATE, "Asteroids");
+    }
+
+    public void tearDown() {
+        mClient.release();
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri uri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, values);
+        return Long.parseLong(uri.getLastPathSegment());
+    }
+
+    private void insertWeather(long locationRowId, long date, String shortDesc) {
+        ContentValues values = TestUtilities.createWeatherValues(locationRowId);
+        values.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, shortDesc);
+        mContext.getContentResolver().insert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+    }
+
+    private String queryShortDesc(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, DETAIL_COLUMNS, null, null,
+                DATE_ORDER);
+        try {
+            assertTrue("Error: No weather for " + uri, cursor.moveToFirst());
+            return cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testRepeatedQueryIsAHit() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // Queries aren't cached before API 11
+            return;
+        }
+        Uri dayUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        int hits = mCache.getHitCount();
+        int misses = mCache.getMissCount();
+
+        assertEquals("Asteroids", queryShortDesc(dayUri));
+        assertEquals("Error: The first query should miss the cache",
+                misses + 1, mCache.getMissCount());
+
+        assertEquals("Asteroids", queryShortDesc(dayUri));
+        assertEquals("Error: The same query again should hit the cache",
+                hits + 1, mCache.getHitCount());
+        assertEquals(misses + 1, mCache.getMissCount());
+    }
+
+    public void testWriteInvalidatesOnlyItsLocationAndDate() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        Uri dayUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        Uri listUri = WeatherContract.LocationEntry.buildLocationWeatherUri(mLocationRowId);
+        Uri otherDayUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                OTHER_LOCATION, TestUtilities.TEST_DATE);
+        queryShortDesc(dayUri);
+        queryShortDesc(listUri);
+        queryShortDesc(otherDayUri);
+
+        insertWeather(mLocationRowId, TestUtilities.TEST_DATE, "Meteors");
+
+        int hits = mCache.getHitCount();
+        assertEquals("Error: A cached query returned rows from before the write",
+                "Meteors", queryShortDesc(dayUri));
+        assertEquals("Error: A cached list returned rows from before the write",
+                "Meteors", queryShortDesc(listUri));
+        assertEquals("Error: The queries of the written location should have been dropped",
+                hits, mCache.getHitCount());
+
+        assertEquals("Asteroids", queryShortDesc(otherDayUri));
+        assertEquals("Error: The query of another location shouldn't have been dropped",
+                hits + 1, mCache.getHitCount());
+    }
+
+    public void testFetchTimeUpdateInvalidatesItsLocation() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        String[] fetchedAtColumns = {WeatherContract.WeatherEntry.COLUMN_FETCHED_AT};
+        Uri listUri = WeatherContract.LocationEntry.buildLocationWeatherUri(mLocationRowId);
+        Cursor cursor = mContext.getContentResolver().query(listUri, fetchedAtColumns, null, null,
+                DATE_ORDER);
+        cursor.close();
+
+        long fetchedAt = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT, fetchedAt);
+        mContext.getContentResolver().update(WeatherContract.WeatherEntry.CONTENT_URI, values,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(mLocationRowId)});
+
+        cursor = mContext.getContentResolver().query(listUri, fetchedAtColumns, null, null,
+                DATE_ORDER);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Error: A cached query returned the fetch time from before the update",
+                    fetchedAt, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testLocationWriteInvalidatesAll() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        Uri dayUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        queryShortDesc(dayUri);
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI, values,
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(mLocationRowId)});
+
+        int misses = mCache.getMissCount();
+        queryShortDesc(dayUri);
+        assertEquals("Error: Updating a location should drop the cached queries",
+                misses + 1, mCache.getMissCount());
+    }
+}
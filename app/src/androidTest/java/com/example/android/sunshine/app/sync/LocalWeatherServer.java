@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A tiny HTTP server on the loopback interface that answers every request with the same
+ * forecast, so the OpenWeatherMapSource can be exercised without a network or an API key.
+ *
+ * It understands just enough HTTP for our client: If-None-Match against its ETag, and
+ * Accept-Encoding: gzip.
+ */
+public class LocalWeatherServer {
+    private static final String LOG_TAG = LocalWeatherServer.class.getSimpleName();
+
+    private final byte[] mBody;
+    private final byte[] mGzippedBody;
+    private final String mEtag;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+
+    public LocalWeatherServer(String body, String etag) throws IOException {
+        mBody = body.getBytes("UTF-8");
+        mEtag = etag;
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped);
+        gzipStream.write(mBody);
+        gzipStream.close();
+        mGzippedBody = gzipped.toByteArray();
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        try {
+                            serve(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        if (!mServerSocket.isClosed()) {
+                            Log.e(LOG_TAG, "Error serving request", e);
+                        }
+                    }
+                }
+            }
+        }, LOG_TAG);
+        mThread.start();
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mThread.join();
+    }
+
+    /**
+     * @return a base URL for OpenWeatherMapSource that points at this server
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        mRequestCount.incrementAndGet();
+
+        String ifNoneMatch = null;
+        boolean acceptsGzip = false;
+        String header;
+        while ((header = in.readLine()) != null && header.length() > 0) {
+            int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+            if ("If-None-Match".equalsIgnoreCase(name)) {
+                ifNoneMatch = value;
+            } else if ("Accept-Encoding".equalsIgnoreCase(name)) {
+                acceptsGzip = value.contains("gzip");
+            }
+        }
+
+        OutputStream out = socket.getOutputStream();
+        StringBuilder headers = new StringBuilder();
+        byte[] body;
+        if (mEtag != null && mEtag.equals(ifNoneMatch)) {
+            headers.append("HTTP/1.1 304 Not Modified\r\n");
+            body = new byte[0];
+        } else {
+            headers.append("HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Type: application/json; charset=utf-8\r\n");
+            if (acceptsGzip) {
+                headers.append("Content-Encoding: gzip\r\n");
+                body = mGzippedBody;
+            } else {
+                body = mBody;
+            }
+        }
+        if (mEtag != null) {
+            headers.append("ETag: ").append(mEtag).append("\r\n");
+        }
+        headers.append("Content-Length: ").append(body.length).append("\r\n");
+        headers.append("Connection: close\r\n\r\n");
+
+        out.write(headers.toString().getBytes("US-ASCII"));
+        out.write(body);
+        out.flush();
+    }
+}
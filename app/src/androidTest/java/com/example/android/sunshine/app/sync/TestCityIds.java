@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks that a remembered city is only used for the coordinates it was resolved from.
+ */
+public class TestCityIds extends AndroidTestCase {
+    private static final String LOCATION = "Mountain View, CA";
+    private static final long CITY_ID = 5375480;
+
+    public void tearDown() {
+        CityIds.put(mContext, new String[]{LOCATION}, new String[]{null}, new long[]{0});
+    }
+
+    public void testCityKeptForSameCoordinates() {
+        CityIds.put(mContext, new String[]{LOCATION}, new String[]{"37.3861,-122.0839"},
+                new long[]{CITY_ID});
+        assertEquals("Error: The city should be used for the coordinates it came from",
+                CITY_ID, CityIds.get(mContext, LOCATION, "37.3861,-122.0839"));
+    }
+
+    public void testCityForgottenWhenCoordinatesChange() {
+        CityIds.put(mContext, new String[]{LOCATION}, new String[]{"37.3861,-122.0839"},
+                new long[]{CITY_ID});
+        assertEquals("Error: A location picked again with the same setting should be resolved "
+                + "again", 0, CityIds.get(mContext, LOCATION, "37.4220,-122.0841"));
+        assertEquals("Error: A city resolved from coordinates doesn't hold for the setting",
+                0, CityIds.get(mContext, LOCATION, null));
+    }
+
+    public void testCityForSettingOnly() {
+        CityIds.put(mContext, new String[]{LOCATION}, new String[]{null}, new long[]{CITY_ID});
+        assertEquals(CITY_ID, CityIds.get(mContext, LOCATION, null));
+        assertEquals("Error: A city resolved from the setting doesn't hold for coordinates",
+                0, CityIds.get(mContext, LOCATION, "37.3861,-122.0839"));
+    }
+}
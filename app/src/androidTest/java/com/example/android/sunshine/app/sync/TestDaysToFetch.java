@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+/*
+    Checks how many days of forecast the sync asks for, given when the stored days were fetched.
+ */
+public class TestDaysToFetch extends AndroidTestCase {
+    private static final long NOW = 1419033600000L;
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+
+    private static long[] fetchedAt(long time) {
+        long[] fetchedAt = new long[SunshineSyncAdapter.NUM_DAYS];
+        Arrays.fill(fetchedAt, time);
+        return fetchedAt;
+    }
+
+    public void testNothingStored() {
+        assertEquals("Error: A location with nothing stored needs the whole forecast",
+                SunshineSyncAdapter.NUM_DAYS,
+                SunshineSyncAdapter.computeDaysToFetch(fetchedAt(0), NOW));
+    }
+
+    public void testEverythingFresh() {
+        assertEquals("Error: A forecast fetched just now needs nothing",
+                0, SunshineSyncAdapter.computeDaysToFetch(fetchedAt(NOW - HOUR_IN_MILLIS), NOW));
+    }
+
+    public void testOnlyNearDaysStale() {
+        long[] fetchedAt = fetchedAt(
+                NOW - SunshineSyncAdapter.NEAR_DAY_STALE_MILLIS - HOUR_IN_MILLIS);
+        assertTrue(NOW - fetchedAt[0] < SunshineSyncAdapter.FAR_DAY_STALE_MILLIS);
+        assertEquals("Error: The request should stop at the last stale near day",
+                SunshineSyncAdapter.NEAR_DAYS,
+                SunshineSyncAdapter.computeDaysToFetch(fetchedAt, NOW));
+    }
+
+    public void testFarDaysStale() {
+        assertEquals("Error: Far days past their time should be fetched too",
+                SunshineSyncAdapter.NUM_DAYS,
+                SunshineSyncAdapter.computeDaysToFetch(
+                        fetchedAt(NOW - SunshineSyncAdapter.FAR_DAY_STALE_MILLIS), NOW));
+    }
+
+    public void testMissingDayExtendsRequest() {
+        long[] fetchedAt = fetchedAt(NOW - HOUR_IN_MILLIS);
+        fetchedAt[7] = 0;
+        assertEquals("Error: Every day up to a missing one should be asked for, fresh or not",
+                8, SunshineSyncAdapter.computeDaysToFetch(fetchedAt, NOW));
+    }
+
+    public void testFreshDaysAfterStaleOnesAreTrimmed() {
+        long[] fetchedAt = fetchedAt(NOW - HOUR_IN_MILLIS);
+        fetchedAt[1] = NOW - SunshineSyncAdapter.NEAR_DAY_STALE_MILLIS;
+        assertEquals("Error: Fresh days after the last stale one shouldn't be asked for",
+                2, SunshineSyncAdapter.computeDaysToFetch(fetchedAt, NOW));
+    }
+}
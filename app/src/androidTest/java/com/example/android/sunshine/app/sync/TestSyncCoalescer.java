@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks that SyncCoalescer only lets through the sync requests that nothing else will cover.
+ */
+public class TestSyncCoalescer extends AndroidTestCase {
+    private static final long NOW = 1419033600000L;
+
+    public void testLocationChangesCollapse() {
+        SyncCoalescer coalescer = new SyncCoalescer();
+
+        long requestedAt = coalescer.onSyncRequested("94043", NOW);
+        assertTrue("Error: The first request should go to the framework", requestedAt != 0);
+        assertEquals("Error: A request while one is waiting should be folded into it",
+                0, coalescer.onSyncRequested("99705", NOW + 100));
+        assertEquals("Error: A request while one is waiting should be folded into it",
+                0, coalescer.onSyncRequested("London, UK", NOW + 200));
+
+        // The waiting sync starts, and reads the last location
+        assertTrue(coalescer.onSyncStarted("London, UK", requestedAt, NOW + 1000));
+        coalescer.onSyncFinished(NOW + 2000);
+    }
+
+    public void testRunningSyncDefersSameLocation() {
+        SyncCoalescer coalescer = new SyncCoalescer();
+
+        long requestedAt = coalescer.onSyncRequested("94043", NOW);
+        assertTrue(coalescer.onSyncStarted("94043", requestedAt, NOW + 1000));
+        assertEquals("Error: A request for the running location should wait for it to finish",
+                0, coalescer.onSyncRequested("94043", NOW + 2000));
+        assertTrue("Error: The running sync doesn't cover another location",
+                coalescer.onSyncRequested("99705", NOW + 3000) != 0);
+        assertEquals("Error: The sync waiting to start covers the request made during the run",
+                0, coalescer.onSyncFinished(NOW + 4000));
+    }
+
+    public void testRequestWhileRunningIsFollowedUp() {
+        SyncCoalescer coalescer = new SyncCoalescer();
+
+        long requestedAt = coalescer.onSyncRequested("94043", NOW);
+        assertTrue(coalescer.onSyncStarted("94043", requestedAt, NOW + 1000));
+        // e.g. the Place Picker moved the location after the sync read its coordinates
+        assertEquals(0, coalescer.onSyncRequested("94043", NOW + 2000));
+        assertEquals(0, coalescer.onSyncRequested("94043", NOW + 2500));
+
+        long followUpAt = coalescer.onSyncFinished(NOW + 3000);
+        assertEquals("Error: A request made while its location was syncing should be made again "
+                + "once the sync is done", NOW + 3000, followUpAt);
+        assertEquals("Error: Requests made before the follow-up starts should be folded into it",
+                0, coalescer.onSyncRequested("94043", NOW + 3500));
+        assertTrue("Error: The follow-up should not be skipped",
+                coalescer.onSyncStarted("94043", followUpAt, NOW + 4000));
+        assertEquals("Error: Nothing was asked for during the follow-up",
+                0, coalescer.onSyncFinished(NOW + 5000));
+
+        assertTrue("Error: Once the syncs are done the location can be synced again",
+                coalescer.onSyncRequested("94043", NOW + 6000) != 0);
+    }
+
+    public void testRequestCoveredByLaterSyncIsSkipped() {
+        SyncCoalescer coalescer = new SyncCoalescer();
+
+        long requestedAt = coalescer.onSyncRequested("94043", NOW);
+        // A periodic sync gets in first
+        assertTrue(coalescer.onSyncStarted("94043", 0, NOW + 1000));
+        coalescer.onSyncFinished(NOW + 1500);
+        assertFalse("Error: The request was already covered by the periodic sync",
+                coalescer.onSyncStarted("94043", requestedAt, NOW + 2000));
+    }
+
+    public void testLostRequestTimesOut() {
+        SyncCoalescer coalescer = new SyncCoalescer();
+
+        assertTrue(coalescer.onSyncRequested("94043", NOW) != 0);
+        assertTrue("Error: A request that never started should be made again",
+                coalescer.onSyncRequested("94043",
+                        NOW + SyncCoalescer.PENDING_TIMEOUT_MILLIS) != 0);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks the rules SyncScheduler uses to stretch and shrink the sync interval.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+    // Far enough from midnight not to matter
+    private static final long NO_ROLLOVER = 60 * 60 * 24;
+
+    public void testIntervalStretchesWhileUnchanged() {
+        long interval = SyncScheduler.computeInterval(0, false, NO_ROLLOVER);
+        assertEquals("Error: A sync that found a change should keep the normal interval",
+                SunshineSyncAdapter.SYNC_INTERVAL, interval);
+
+        long previous = interval;
+        for (int streak = 1; streak < 10; streak++) {
+            interval = SyncScheduler.computeInterval(streak, false, NO_ROLLOVER);
+            assertTrue("Error: The interval shrank after " + streak + " unchanged syncs",
+                    interval >= previous);
+            assertTrue("Error: The interval went past the maximum",
+                    interval <= SyncScheduler.MAX_INTERVAL);
+            previous = interval;
+        }
+        assertEquals("Error: A long unchanged streak should reach the maximum interval",
+                SyncScheduler.MAX_INTERVAL, interval);
+    }
+
+    public void testOnlyConfirmedForecastsExtendStreak() {
+        assertEquals("Error: A change should end the streak",
+                0, SyncScheduler.computeUnchangedStreak(3, true, false));
+        assertEquals("Error: A not-modified response or a matching hash should extend the streak",
+                4, SyncScheduler.computeUnchangedStreak(3, false, true));
+        assertEquals("Error: A sync that asked for nothing shouldn't extend the streak",
+                3, SyncScheduler.computeUnchangedStreak(3, false, false));
+    }
+
+    public void testIntervalShrinksInForeground() {
+        assertEquals("Error: The foreground interval wasn't applied",
+                SyncScheduler.FOREGROUND_INTERVAL,
+                SyncScheduler.computeInterval(5, true, NO_ROLLOVER));
+    }
+
+    public void testIntervalEndsJustAfterRollover() {
+        long untilRollover = 60 * 60;
+        assertEquals("Error: The sync should land just after midnight",
+                untilRollover + SyncScheduler.ROLLOVER_MARGIN,
+                SyncScheduler.computeInterval(5, false, untilRollover));
+
+        // Right before midnight the minimum wins, so we don't sync twice in a row.
+        assertEquals("Error: The interval went below the minimum",
+                SyncScheduler.MIN_INTERVAL,
+                SyncScheduler.computeInterval(0, false, 0));
+    }
+
+    public void testDelayCountsFromLastSync() {
+        long interval = SyncScheduler.computeInterval(0, false, NO_ROLLOVER);
+        assertEquals("Error: Coming back to the app shouldn't put the next sync off",
+                interval - 600, SyncScheduler.computeDelay(interval, 600));
+        assertEquals("Error: An overdue sync should be due now",
+                0, SyncScheduler.computeDelay(interval, interval + 600));
+    }
+}
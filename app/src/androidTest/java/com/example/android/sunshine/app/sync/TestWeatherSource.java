@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+    Exercises the WeatherSource implementations against fixtures, so that the fetch and parse
+    half of the sync can be regression tested and timed without the network or an API key.
+ */
+public class TestWeatherSource extends AndroidTestCase {
+    public static final String LOG_TAG = TestWeatherSource.class.getSimpleName();
+
+    static final String TEST_LOCATION = "99705";
+    static final String TEST_ETAG = "\"north-pole-1\"";
+    static final int TEST_NUM_DAYS = 14;
+
+    private static final int BENCHMARK_ITERATIONS = 50;
+
+    private LocalWeatherServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalWeatherServer(buildForecastJson("North Pole", TEST_NUM_DAYS), TEST_ETAG);
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    /*
+        Builds a forecast in the OpenWeatherMap daily format.  The list comes before the city on
+        purpose, since the parser has to cope with either order.
+     */
+    static String buildForecastJson(String cityName, int numDays) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cod\":\"200\",\"message\":0.01,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":10.0,\"min\":%.2f,\"max\":%.2f,\"night\":5.0," +
+                            "\"eve\":8.0,\"morn\":6.0},\"pressure\":%.2f,\"humidity\":%d," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"Clear\",\"description\":" +
+                            "\"sky is clear\",\"icon\":\"01d\"}],\"speed\":%.2f,\"deg\":%d," +
+                            "\"clouds\":0}",
+                    1419033600L + i * 86400L, -20.0 + i, -10.0 + i, 1013.25 - i, 60 + i,
+                    800, 1.5 + i * 0.1, (i * 25) % 360));
+        }
+        json.append("],\"city\":{\"id\":5861897,\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":-147.353,\"lat\":64.7488},\"country\":\"US\"}}");
+        return json.toString();
+    }
+
+    private static WeatherSource.ForecastRequest buildRequest(String etag, String lastModified) {
+        return new WeatherSource.ForecastRequest(TEST_LOCATION, 0, false, 0, 0, TEST_NUM_DAYS,
+                etag, lastModified);
+    }
+
+    private static int countDays(WeatherSource.ForecastResponse response)
+            throws IOException, JSONException {
+        final int[] dayCount = new int[1];
+        final String[] city = new String[1];
+        int messageCode = ForecastJsonParser.parse(
+                new InputStreamReader(response.getBody(), "UTF-8"),
+                new ForecastJsonParser.Callback() {
+                    @Override
+                    public void onCity(long cityId, String cityName, double lat, double lon) {
+                        city[0] = cityName;
+                    }
+
+                    @Override
+                    public void onDay(int dayIndex, ContentValues weatherValues) {
+                        assertEquals("Error: days were not delivered in order",
+                                dayCount[0], dayIndex);
+                        dayCount[0]++;
+                    }
+                });
+        assertEquals(HttpURLConnection.HTTP_OK, messageCode);
+        assertEquals("North Pole", city[0]);
+        return dayCount[0];
+    }
+
+    public void testOpenWeatherMapSourceAgainstLocalServer() throws Exception {
+        WeatherSource source = new OpenWeatherMapSource(mServer.getBaseUrl(), "test-key");
+
+        WeatherSource.ForecastResponse response = source.fetchForecast(buildRequest(null, null));
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode);
+            assertEquals(TEST_ETAG, response.etag);
+            assertEquals(TEST_NUM_DAYS, countDays(response));
+            assertTrue("Error: the gzipped forecast should be smaller than the decoded one",
+                    response.getWireBytes() < response.getDecodedBytes());
+        } finally {
+            response.close();
+        }
+    }
+
+    public void testOpenWeatherMapSourceNotModified() throws Exception {
+        WeatherSource source = new OpenWeatherMapSource(mServer.getBaseUrl(), "test-key");
+
+        WeatherSource.ForecastResponse response =
+                source.fetchForecast(buildRequest(TEST_ETAG, null));
+        try {
+            assertTrue("Error: a matching ETag should be answered with 304",
+                    response.isNotModified());
+            assertNull(response.getBody());
+        } finally {
+            response.close();
+        }
+    }
+
+    private static String decodeDeflated(String text, boolean zlibWrapped) throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, !zlibWrapped);
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(deflated, deflater);
+        deflaterStream.write(text.getBytes("UTF-8"));
+        deflaterStream.close();
+        deflater.end();
+
+        InputStream in = OpenWeatherMapSource.decodeContent(
+                new ByteArrayInputStream(deflated.toByteArray()), "deflate");
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                decoded.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return decoded.toString("UTF-8");
+    }
+
+    /*
+        "deflate" is supposed to be zlib-wrapped, but some servers send the raw stream.
+     */
+    public void testDecodeDeflate() throws Exception {
+        String json = buildForecastJson("North Pole", TEST_NUM_DAYS);
+        assertEquals("Error: zlib-wrapped deflate wasn't decoded",
+                json, decodeDeflated(json, true));
+        assertEquals("Error: raw deflate wasn't decoded",
+                json, decodeDeflated(json, false));
+    }
+
+    public void testFixtureSource() throws Exception {
+        File fixtureDir = new File(mContext.getCacheDir(), "forecast_fixtures");
+        assertTrue(fixtureDir.isDirectory() || fixtureDir.mkdirs());
+        File fixture = new File(fixtureDir, FixtureWeatherSource.DEFAULT_FIXTURE);
+        FileOutputStream out = new FileOutputStream(fixture);
+        try {
+            out.write(buildForecastJson("North Pole", TEST_NUM_DAYS).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        WeatherSource source = new FixtureWeatherSource(fixtureDir);
+        WeatherSource.ForecastResponse response = source.fetchForecast(buildRequest(null, null));
+        String lastModified;
+        try {
+            assertEquals(TEST_NUM_DAYS, countDays(response));
+            lastModified = response.lastModified;
+        } finally {
+            response.close();
+        }
+
+        response = source.fetchForecast(buildRequest(null, lastModified));
+        try {
+            assertTrue("Error: an untouched fixture should be reported as not modified",
+                    response.isNotModified());
+        } finally {
+            response.close();
+        }
+        fixture.delete();
+    }
+
+    /*
+        Times fetching and parsing a full forecast over loopback HTTP, which is the part of the
+        sync that doesn't depend on the database.  Every fetch has to reach the server and parse
+        to the full forecast, which is checked; the timings are a benchmark and are only logged.
+     */
+    public void testFetchAndParseThroughput() throws Exception {
+        WeatherSource source = new OpenWeatherMapSource(mServer.getBaseUrl(), "test-key");
+
+        long worstMillis = 0;
+        long startMillis = SystemClock.elapsedRealtime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            long fetchStart = SystemClock.elapsedRealtime();
+            WeatherSource.ForecastResponse response =
+                    source.fetchForecast(buildRequest(null, null));
+            try {
+                assertEquals(TEST_NUM_DAYS, countDays(response));
+            } finally {
+                response.close();
+            }
+            worstMillis = Math.max(worstMillis, SystemClock.elapsedRealtime() - fetchStart);
+        }
+        long totalMillis = SystemClock.elapsedRealtime() - startMillis;
+
+        assertEquals(BENCHMARK_ITERATIONS, mServer.getRequestCount());
+        Log.i(LOG_TAG, "Fetched and parsed " + BENCHMARK_ITERATIONS + " forecasts in "
+                + totalMillis + "ms (mean " + (totalMillis / BENCHMARK_ITERATIONS)
+                + "ms, worst " + worstMillis + "ms)");
+    }
+}
@@ -64,6 +64,8 @@ public class ForecastFragment extends Fragment
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    // Whether the forecast shown has been checked for staleness yet
+    private boolean mRevalidated;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -85,7 +87,8 @@ public class ForecastFragment extends Fragment
             WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.LocationEntry.COLUMN_COORD_LAT,
-            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.WeatherEntry.COLUMN_FETCHED_AT
     };
 
     // These indices are tied to FORECAST_COLUMNS.  If FORECAST_COLUMNS changes, these
@@ -99,6 +102,7 @@ public class ForecastFragment extends Fragment
     static final int COL_WEATHER_CONDITION_ID = 6;
     static final int COL_COORD_LAT = 7;
     static final int COL_COORD_LONG = 8;
+    static final int COL_FETCHED_AT = 9;
 
     /**
      * A callback interface that all activities containing this fragment must
@@ -342,6 +346,12 @@ public class ForecastFragment extends Fragment
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         mForecastAdapter.swapCursor(data);
         updateEmptyView();
+        if (!mRevalidated && data.moveToFirst()) {
+            // What we show first may be an old forecast restored after an upgrade, so make sure
+            // a newer one is on its way.
+            mRevalidated = true;
+            SunshineSyncAdapter.syncIfStale(getActivity(), data.getLong(COL_FETCHED_AT));
+        }
         if ( data.getCount() == 0 ) {
             getActivity().supportStartPostponedEnterTransition();
         } else {
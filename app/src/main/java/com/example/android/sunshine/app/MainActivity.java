@@ -35,6 +35,7 @@ import android.view.View;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.gcm.RegistrationIntentService;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -166,6 +167,7 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
             mLocation = location;
         }
         mGoogleApiClient.connect();
+        SyncScheduler.setForeground(this, true);
     }
 
     @Override
@@ -197,6 +199,7 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
     protected void onPause() {
         super.onPause();
         mGoogleApiClient.disconnect();
+        SyncScheduler.setForeground(this, false);
     }
 
     @Override
@@ -57,6 +57,7 @@ public class SettingsActivity extends PreferenceActivity
         // For all preferences, attach an OnPreferenceChangeListener so the UI summary can be
         // updated when the preference changes.
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_location_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_saved_locations_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_art_pack_key)));
 
@@ -135,6 +136,11 @@ public class SettingsActivity extends PreferenceActivity
                     // is valid
                     preference.setSummary(stringValue);
             }
+        } else if (key.equals(getString(R.string.pref_saved_locations_key))) {
+            // One location per line, listed on one line
+            String locations = TextUtils.join(", ", stringValue.trim().split("\\s*\n\\s*"));
+            preference.setSummary(locations.length() > 0
+                    ? locations : getString(R.string.pref_saved_locations_description));
         } else {
             // For other preferences, set the summary to the value's simple string representation.
             preference.setSummary(stringValue);
@@ -168,6 +174,9 @@ public class SettingsActivity extends PreferenceActivity
 
             Utility.resetLocationStatus(this);
             SunshineSyncAdapter.syncImmediately(this);
+        } else if ( key.equals(getString(R.string.pref_saved_locations_key)) ) {
+            // fetch the forecasts of the locations that were added
+            SunshineSyncAdapter.syncImmediately(this);
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
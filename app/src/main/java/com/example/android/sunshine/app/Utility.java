@@ -26,7 +26,9 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
@@ -60,6 +62,29 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Returns every location we keep a forecast for: the preferred location first, followed by
+     * any other saved locations.  Those are entered in the settings, one per line.
+     *
+     * @param context Context used to get the SharedPreferences
+     * @return the location settings, without duplicates
+     */
+    public static List<String> getSavedLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        List<String> locations = new ArrayList<String>();
+        locations.add(getPreferredLocation(context));
+
+        // Stored as one location per line, since string sets need API 11.
+        String saved = prefs.getString(context.getString(R.string.pref_saved_locations_key), "");
+        for (String location : saved.split("\n")) {
+            location = location.trim();
+            if (location.length() > 0 && !locations.contains(location)) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
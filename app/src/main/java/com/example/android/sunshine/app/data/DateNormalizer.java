@@ -0,0 +1,50 @@
+package com.example.android.sunshine.app.data;
+
+import java.util.TimeZone;
+
+/**
+ * Normalizes dates to the start of their local day, the way
+ * {@link WeatherContract#normalizeDate(long)} does, for code that normalizes many dates in a row.
+ * Rather than setting up a new Time for every date, it works the day out from the time zone's
+ * UTC offset, keeping the last offset it used and only taking a new one when the zone's offset
+ * at the start of the day turns out to be different.  The day it last returned is remembered
+ * too, since consecutive dates often fall on the same one.
+ *
+ * Not thread-safe: use one per batch of dates.
+ */
+final class DateNormalizer {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final TimeZone mTimeZone = TimeZone.getDefault();
+    private int mOffset;
+
+    // The last day returned, from its start up to the start of the next one
+    private long mDayStart = 1;
+    private long mDayEnd = 0;
+
+    long normalize(long date) {
+        if (date >= mDayStart && date < mDayEnd) {
+            return mDayStart;
+        }
+        long localDay = floorDiv(date + mTimeZone.getOffset(date), DAY_MILLIS);
+        mDayStart = getDayStart(localDay);
+        mDayEnd = getDayStart(localDay + 1);
+        return mDayStart;
+    }
+
+    /**
+     * @return the UTC time of local midnight at the start of the given day since the epoch
+     */
+    private long getDayStart(long localDay) {
+        long localMidnight = localDay * DAY_MILLIS;
+        // Guess with the last offset, then take the zone's offset at that instant, which only
+        // differs from the guess across a daylight saving change.
+        mOffset = mTimeZone.getOffset(localMidnight - mOffset);
+        return localMidnight - mOffset;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? quotient - 1 : quotient;
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A copy of the last forecast stored for each location, kept in a small binary file per location
+ * outside of the database.  When the database has to be created from nothing, because it was
+ * cleared, left out of a backup or too old to migrate, {@link WeatherDbHelper} puts these
+ * forecasts back into the new tables, so the app has something to show before the first sync
+ * goes through.
+ *
+ * The rows keep the fetch time they were stored with, so they count as stale, and get fetched
+ * again, as soon as the forecast they came from would have.
+ *
+ * A file is a header (magic, format version, the location row and the number of days) followed
+ * by the days, big endian, with strings as a length and UTF-8 bytes.  Files with another magic or
+ * version are ignored, so the format can change without a migration.
+ */
+public final class ForecastFileCache {
+    private static final String LOG_TAG = ForecastFileCache.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "forecast_cache";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x53554e46; // "SUNF"
+    static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String[] WEATHER_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_FETCHED_AT
+    };
+
+    private ForecastFileCache() {
+    }
+
+    /**
+     * Copy the forecast stored for the location to its file.  Losing the copy only costs a slower
+     * start after the next upgrade, so errors are logged rather than thrown.  This reads the
+     * provider and writes a file, so it should not be called from the UI thread.
+     */
+    public static void save(Context context, String locationSetting) {
+        String[] projection = new String[LOCATION_COLUMNS.length + WEATHER_COLUMNS.length];
+        System.arraycopy(LOCATION_COLUMNS, 0, projection, 0, LOCATION_COLUMNS.length);
+        System.arraycopy(WEATHER_COLUMNS, 0, projection, LOCATION_COLUMNS.length,
+                WEATHER_COLUMNS.length);
+        Cursor cursor = context.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(locationSetting), projection, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return;
+        }
+        ContentValues location = null;
+        List<ContentValues> days = new ArrayList<ContentValues>();
+        try {
+            while (cursor.moveToNext()) {
+                if (location == null) {
+                    location = new ContentValues();
+                    location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+                    location.put(LocationEntry.COLUMN_CITY_NAME, cursor.getString(0));
+                    location.put(LocationEntry.COLUMN_COORD_LAT, cursor.getDouble(1));
+                    location.put(LocationEntry.COLUMN_COORD_LONG, cursor.getDouble(2));
+                }
+                int i = LOCATION_COLUMNS.length;
+                ContentValues day = new ContentValues();
+                day.put(WeatherEntry.COLUMN_DATE, cursor.getLong(i++));
+                day.put(WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(i++));
+                day.put(WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(i++));
+                day.put(WeatherEntry.COLUMN_MIN_TEMP, cursor.getDouble(i++));
+                day.put(WeatherEntry.COLUMN_MAX_TEMP, cursor.getDouble(i++));
+                day.put(WeatherEntry.COLUMN_HUMIDITY, cursor.getDouble(i++));
+                day.put(WeatherEntry.COLUMN_PRESSURE, cursor.getDouble(i++));
+                day.put(WeatherEntry.COLUMN_WIND_SPEED, cursor.getDouble(i++));
+                day.put(WeatherEntry.COLUMN_DEGREES, cursor.getDouble(i++));
+                day.put(WeatherEntry.COLUMN_FETCHED_AT, cursor.getLong(i));
+                days.add(day);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        File file = getFile(context, locationSetting);
+        if (location == null) {
+            // Nothing stored, so nothing worth keeping either.
+            file.delete();
+            return;
+        }
+        try {
+            write(file, location, days);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error saving forecast for " + locationSetting, e);
+        }
+    }
+
+    /**
+     * Delete the files of every location that isn't one of the given ones.
+     */
+    public static void retain(Context context, Collection<String> locationSettings) {
+        Set<String> keep = new HashSet<String>();
+        for (String locationSetting : locationSettings) {
+            keep.add(getFile(context, locationSetting).getName());
+        }
+        File[] files = getDirectory(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!keep.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete every file.
+     */
+    public static void clear(Context context) {
+        retain(context, new ArrayList<String>());
+    }
+
+    /**
+     * Insert the forecast of every location that has a file into the database, which must be
+     * empty.  A file that can't be read is deleted and skipped.
+     *
+     * @return the number of locations restored
+     */
+    static int restoreAll(Context context, SQLiteDatabase db) {
+        File[] files = getDirectory(context).listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int restored = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            ContentValues location = new ContentValues();
+            List<ContentValues> days = new ArrayList<ContentValues>();
+            try {
+                if (!read(file, location, days)) {
+                    Log.d(LOG_TAG, "Dropping " + file.getName() + " in an older format");
+                    file.delete();
+                    continue;
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error reading " + file.getName(), e);
+                file.delete();
+                continue;
+            }
+
+            long locationId = db.insert(LocationEntry.TABLE_NAME, null, location);
+            if (locationId == -1) {
+                continue;
+            }
+            for (ContentValues day : days) {
+                day.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                db.insert(WeatherEntry.TABLE_NAME, null, day);
+            }
+            restored++;
+        }
+        Log.d(LOG_TAG, "Restored the forecasts of " + restored + " locations");
+        return restored;
+    }
+
+    /**
+     * Write the file in one go, under a temporary name first so that a crash halfway can't leave
+     * a truncated file behind.
+     */
+    static void write(File file, ContentValues location, List<ContentValues> days)
+            throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING));
+            writeString(out, location.getAsString(LocationEntry.COLUMN_CITY_NAME));
+            out.writeDouble(location.getAsDouble(LocationEntry.COLUMN_COORD_LAT));
+            out.writeDouble(location.getAsDouble(LocationEntry.COLUMN_COORD_LONG));
+            out.writeInt(days.size());
+            for (ContentValues day : days) {
+                out.writeLong(day.getAsLong(WeatherEntry.COLUMN_DATE));
+                out.writeInt(day.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID));
+                writeString(out, day.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+                out.writeDouble(day.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP));
+                out.writeDouble(day.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP));
+                out.writeDouble(day.getAsDouble(WeatherEntry.COLUMN_HUMIDITY));
+                out.writeDouble(day.getAsDouble(WeatherEntry.COLUMN_PRESSURE));
+                out.writeDouble(day.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED));
+                out.writeDouble(day.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+                out.writeLong(day.getAsLong(WeatherEntry.COLUMN_FETCHED_AT));
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Read a file written by {@link #write(File, ContentValues, List)}, mapping it into memory
+     * rather than copying it through a stream.
+     *
+     * @return false if the file is in another format
+     * @throws IOException if the file can't be read or is cut short
+     */
+    static boolean read(File file, ContentValues location, List<ContentValues> days)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION) {
+                return false;
+            }
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, readString(buffer));
+            location.put(LocationEntry.COLUMN_CITY_NAME, readString(buffer));
+            location.put(LocationEntry.COLUMN_COORD_LAT, buffer.getDouble());
+            location.put(LocationEntry.COLUMN_COORD_LONG, buffer.getDouble());
+            int dayCount = buffer.getInt();
+            for (int i = 0; i < dayCount; i++) {
+                ContentValues day = new ContentValues();
+                day.put(WeatherEntry.COLUMN_DATE, buffer.getLong());
+                day.put(WeatherEntry.COLUMN_WEATHER_ID, buffer.getInt());
+                day.put(WeatherEntry.COLUMN_SHORT_DESC, readString(buffer));
+                day.put(WeatherEntry.COLUMN_MIN_TEMP, buffer.getDouble());
+                day.put(WeatherEntry.COLUMN_MAX_TEMP, buffer.getDouble());
+                day.put(WeatherEntry.COLUMN_HUMIDITY, buffer.getDouble());
+                day.put(WeatherEntry.COLUMN_PRESSURE, buffer.getDouble());
+                day.put(WeatherEntry.COLUMN_WIND_SPEED, buffer.getDouble());
+                day.put(WeatherEntry.COLUMN_DEGREES, buffer.getDouble());
+                day.put(WeatherEntry.COLUMN_FETCHED_AT, buffer.getLong());
+                days.add(day);
+            }
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated forecast file " + file.getName(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    static File getFile(Context context, String locationSetting) {
+        return new File(getDirectory(context), Uri.encode(locationSetting) + FILE_SUFFIX);
+    }
+
+    private static File getDirectory(Context context) {
+        // Not the cache directory: the point is that the files outlive the database.
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
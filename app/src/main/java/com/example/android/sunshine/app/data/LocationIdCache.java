@@ -0,0 +1,64 @@
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A process-wide map from location setting to the row ID of that location in the location
+ * table, so that the sync adapter and the provider don't have to look the location up every time
+ * they read or write its weather.
+ *
+ * WeatherProvider keeps the cache coherent: it adds the locations it inserts and clears the
+ * cache whenever locations are updated or deleted.  Anyone else who fills the cache from a query
+ * takes the generation first and passes it to {@link #put(String, long, int)}, so that a lookup
+ * that raced with a clear can't put a stale id back.
+ */
+public final class LocationIdCache {
+    private static final Map<String, Long> sLocationIds = new HashMap<String, Long>();
+    private static int sGeneration;
+
+    private LocationIdCache() {
+    }
+
+    /**
+     * @return the row ID of the location, or -1 if it isn't cached
+     */
+    public static synchronized long get(String locationSetting) {
+        Long locationId = sLocationIds.get(locationSetting);
+        return locationId != null ? locationId : -1;
+    }
+
+    /**
+     * @return the location setting of the location with the row ID, or null if it isn't cached
+     */
+    public static synchronized String getLocationSetting(long locationId) {
+        for (Map.Entry<String, Long> entry : sLocationIds.entrySet()) {
+            if (entry.getValue() == locationId) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the current generation, to be taken before looking a location up
+     */
+    public static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Cache the row ID of a location that was looked up, unless the cache has been cleared since
+     * the generation was taken.
+     */
+    public static synchronized void put(String locationSetting, long locationId, int generation) {
+        if (generation == sGeneration) {
+            sLocationIds.put(locationSetting, locationId);
+        }
+    }
+
+    static synchronized void clear() {
+        sLocationIds.clear();
+        sGeneration++;
+    }
+}
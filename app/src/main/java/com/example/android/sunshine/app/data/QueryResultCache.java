@@ -0,0 +1,184 @@
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * The rows of WeatherProvider's most recent weather-by-location queries, copied out of their
+ * cursors, so that asking for the same forecast again (a widget update, a fragment reloading
+ * after a rotation) is answered from memory.  Entries are bounded by their total number of rows
+ * and the least recently used go first.
+ *
+ * Each entry remembers the location and the date, or first date, its query was for, so that a
+ * write only drops the entries it could have changed.  As in {@link LocationIdCache}, whoever
+ * fills the cache takes the generation before querying and passes it to
+ * {@link #put(String, String, long, boolean, Cursor, int)}, so that a query that raced with a
+ * write can't put rows from before the write back.
+ */
+final class QueryResultCache {
+    private static final int MAX_ROWS = 256;
+
+    private static final class Entry {
+        final String locationSetting;
+        // The date the rows are for, or the first date they start at if fromDate is set
+        final long date;
+        final boolean fromDate;
+        final String[] columns;
+        final Object[][] rows;
+
+        Entry(String locationSetting, long date, boolean fromDate, String[] columns,
+              Object[][] rows) {
+            this.locationSetting = locationSetting;
+            this.date = date;
+            this.fromDate = fromDate;
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        boolean covers(long changedDate) {
+            return fromDate ? changedDate >= date : changedDate == date;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ROWS) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            return Math.max(1, entry.rows.length);
+        }
+    };
+    private int mGeneration;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @return the key of a query for the location, given by setting or row ID, and date
+     */
+    static String getKey(int match, String location, long date, String[] projection,
+                         String sortOrder) {
+        return match + "|" + location + "|" + date + "|"
+                + (projection != null ? TextUtils.join(",", projection) : "*") + "|" + sortOrder;
+    }
+
+    /**
+     * @return a cursor over the cached rows of the query, or null if they aren't cached
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        MatrixCursor cursor = new MatrixCursor(entry.columns, entry.rows.length);
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the current generation, to be taken before running a query to cache
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Copy the rows of the cursor, which is closed, and cache them unless the cache has been
+     * invalidated since the generation was taken.
+     *
+     * @return a cursor over the copied rows
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(String key, String locationSetting, long date, boolean fromDate, Cursor cursor,
+               int generation) {
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        MatrixCursor copy = new MatrixCursor(columns, rows.length);
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                Object[] row = new Object[columns.length];
+                for (int column = 0; column < columns.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[column] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[column] = cursor.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[column] = cursor.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[column] = cursor.getBlob(column);
+                            break;
+                        default:
+                            row[column] = null;
+                    }
+                }
+                rows[i] = row;
+                copy.addRow(row);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, new Entry(locationSetting, date, fromDate, columns, rows));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Drop the entries of the location that include the date.
+     */
+    synchronized void invalidate(String locationSetting, long date) {
+        mGeneration++;
+        for (Map.Entry<String, Entry> entry : mEntries.snapshot().entrySet()) {
+            Entry value = entry.getValue();
+            if (value.locationSetting.equals(locationSetting) && value.covers(date)) {
+                mEntries.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drop every entry of the location.
+     */
+    synchronized void invalidate(String locationSetting) {
+        mGeneration++;
+        for (Map.Entry<String, Entry> entry : mEntries.snapshot().entrySet()) {
+            if (entry.getValue().locationSetting.equals(locationSetting)) {
+                mEntries.remove(entry.getKey());
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Query cache: " + mEntries.size() + "/" + MAX_ROWS + " rows in "
+                + mEntries.snapshot().size() + " queries, " + mHitCount + " hits, "
+                + mMissCount + " misses, " + mEntries.evictionCount() + " evictions");
+    }
+}
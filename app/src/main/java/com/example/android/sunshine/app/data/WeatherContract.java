@@ -43,6 +43,18 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_LOG = "sync_log";
+    public static final String PATH_HOURLY = "hourly";
+
+    // Add to the uri of a write with deferNotifications to hold its change notifications back
+    // until the provider is called with METHOD_FLUSH_NOTIFICATIONS, so that a write made in
+    // several steps wakes its observers once, when it is done.
+    public static final String PARAM_DEFER_NOTIFICATIONS = "defer_notifications";
+    public static final String METHOD_FLUSH_NOTIFICATIONS = "flush_notifications";
+
+    public static Uri deferNotifications(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(PARAM_DEFER_NOTIFICATIONS, "1").build();
+    }
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -84,6 +96,22 @@ public class WeatherContract {
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        // The weather for a location, by the location's row ID rather than its setting, which
+        // spares the provider from joining the location table in.
+        public static Uri buildLocationWeatherUri(long id) {
+            return buildLocationUri(id).buildUpon().appendPath(PATH_WEATHER).build();
+        }
+
+        public static Uri buildLocationWeatherWithStartDate(long id, long startDate) {
+            return buildLocationWeatherUri(id).buildUpon()
+                    .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                            Long.toString(normalizeDate(startDate))).build();
+        }
+
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,6 +154,10 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // When the day's forecast was last fetched, whether or not it changed, in milliseconds
+        // since the epoch.  Rows that don't have one count as stale.
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +197,160 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /*
+        Inner class that defines the table contents of the hourly table, which holds the 3-hour
+        forecast: about 40 readings per location instead of 14 days.  To keep the rows small the
+        readings are stored as integers in fixed point (see the *_SCALE constants), the time is
+        in seconds rather than milliseconds, and the description of the weather is kept once per
+        distinct condition in the condition table instead of in every row.
+
+        Queries return the condition's COLUMN_WEATHER_ID and COLUMN_SHORT_DESC alongside the
+        readings, and bulk inserts take them in the same columns in place of
+        COLUMN_CONDITION_KEY.  As the condition table is joined in, ask for the row ID as
+        TABLE_NAME + "." + _ID.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Query parameters bounding the time range of hourly/*, in seconds
+        public static final String PARAM_START_TIME = "start";
+        public static final String PARAM_END_TIME = "end";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the 3-hour period, in seconds since the epoch
+        public static final String COLUMN_TIME = "time";
+        // Column with the foreign key into the condition table.
+        public static final String COLUMN_CONDITION_KEY = "condition_id";
+
+        // The condition's columns, as returned by queries and taken by bulk inserts
+        public static final String COLUMN_WEATHER_ID = ConditionEntry.COLUMN_WEATHER_ID;
+        public static final String COLUMN_SHORT_DESC = ConditionEntry.COLUMN_SHORT_DESC;
+
+        // Temperature in hundredths of a degree Celsius
+        public static final String COLUMN_TEMP = "temp";
+        public static final int TEMP_SCALE = 100;
+        // Humidity in whole percent
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Pressure in tenths of a hectopascal
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final int PRESSURE_SCALE = 10;
+        // Wind speed in hundredths of a meter per second
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final int WIND_SPEED_SCALE = 100;
+        // Wind direction in whole meteorological degrees
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static int toFixedPoint(double value, int scale) {
+            return (int) Math.round(value * scale);
+        }
+
+        public static double fromFixedPoint(long value, int scale) {
+            return (double) value / scale;
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        // The readings for the location whose period starts at or after startTime and before
+        // endTime, both in seconds since the epoch
+        public static Uri buildHourlyLocationWithRange(
+                String locationSetting, long startTime, long endTime) {
+            return buildHourlyLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(PARAM_START_TIME, Long.toString(startTime))
+                    .appendQueryParameter(PARAM_END_TIME, Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            String startTime = uri.getQueryParameter(PARAM_START_TIME);
+            return startTime != null && startTime.length() > 0 ? Long.parseLong(startTime) : 0;
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            String endTime = uri.getQueryParameter(PARAM_END_TIME);
+            return endTime != null && endTime.length() > 0
+                    ? Long.parseLong(endTime) : Long.MAX_VALUE;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the condition table: one row for each
+        distinct weather id and description the hourly forecast has used.  It is only reached
+        through the hourly table, so it has no uri of its own.
+     */
+    public static final class ConditionEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "weather_condition";
+
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Short description of the weather, as provided by API, e.g. "Clear"
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+    }
+
+    /*
+        Inner class that defines the table contents of the sync log, which keeps the timings of
+        the last MAX_ENTRIES syncs for debugging.  Durations are in milliseconds of elapsed
+        realtime; the fetch durations are summed over all of the sync's requests, which run in
+        parallel, so they can add up to more than the fetch phase took.
+     */
+    public static final class SyncLogEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_LOG).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_LOG;
+
+        public static final String TABLE_NAME = "sync_log";
+
+        // Older entries are dropped as new ones are added
+        public static final int MAX_ENTRIES = 50;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_STARTED = "started";
+        // How the sync ended, e.g. "ok" or "server_down"
+        public static final String COLUMN_RESULT = "result";
+        public static final String COLUMN_TOTAL_MS = "total_ms";
+
+        // Wall time of the parallel fetch phase as a whole
+        public static final String COLUMN_FETCH_MS = "fetch_ms";
+        // Summed time from sending each request to having its response headers
+        public static final String COLUMN_CONNECT_MS = "connect_ms";
+        // Summed time spent reading and parsing the response bodies, which happens together
+        // because the parser streams
+        public static final String COLUMN_DOWNLOAD_MS = "download_ms";
+
+        // Comparing the fetched days with the stored ones
+        public static final String COLUMN_DIFF_MS = "diff_ms";
+        // Writing the changed days and pruning the old ones, which is a single transaction, and
+        // then the 3-hour forecast
+        public static final String COLUMN_WRITE_MS = "write_ms";
+
+        // Each of the consumers that are told about new weather
+        public static final String COLUMN_WIDGETS_MS = "widgets_ms";
+        public static final String COLUMN_MUZEI_MS = "muzei_ms";
+        public static final String COLUMN_NOTIFICATION_MS = "notification_ms";
+        public static final String COLUMN_WEARABLE_MS = "wearable_ms";
+
+        public static final String COLUMN_LOCATIONS = "locations";
+        public static final String COLUMN_REQUESTS = "requests";
+        public static final String COLUMN_WIRE_BYTES = "wire_bytes";
+        public static final String COLUMN_DECODED_BYTES = "decoded_bytes";
+        public static final String COLUMN_ROWS_WRITTEN = "rows_written";
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+    }
 }
@@ -15,29 +15,223 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.ConditionEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The schema is built up the same way for a new install as for an upgrade: the tables of
+ * BASE_VERSION are created and then every migration since is applied in order.  To change the
+ * schema, add a migration to the end of MIGRATIONS and bump DATABASE_VERSION to its version;
+ * never edit a migration that has shipped, because installs that already ran it won't run it
+ * again.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 6;
+
+    // The oldest version that can be migrated.  Anything older is dropped and created again.
+    static final int BASE_VERSION = 2;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    // A sync writes a few dozen pages: the daily batch, the 3-hour forecast and its log entry.
+    // Checkpointing only once the log is past several syncs' worth keeps the checkpoint out of
+    // the middle of a sync, and keeps the log short enough that readers don't have to look
+    // through much of it.  The size limit truncates the log back down after a checkpoint.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 200;
+    static final int WAL_SIZE_LIMIT_BYTES = 1024 * 1024;
+
+    /**
+     * One step of the schema's history, taking the database from the version before it to its
+     * own.  It runs inside the transaction of the upgrade; if it throws, the upgrade falls back
+     * to starting over with an empty database.
+     */
+    abstract static class Migration {
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        abstract void apply(SQLiteDatabase db);
+    }
+
+    static final Migration[] MIGRATIONS = {
+            new Migration(3) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // Timings of recent syncs.  Every insert drops the entries that have fallen
+                    // more than MAX_ENTRIES behind it, so the table works as a ring buffer.
+                    db.execSQL("CREATE TABLE " + SyncLogEntry.TABLE_NAME + " (" +
+                            SyncLogEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            SyncLogEntry.COLUMN_STARTED + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_RESULT + " TEXT NOT NULL, " +
+                            SyncLogEntry.COLUMN_TOTAL_MS + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_FETCH_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_CONNECT_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_DOWNLOAD_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_DIFF_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_WRITE_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_WIDGETS_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_MUZEI_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_NOTIFICATION_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_WEARABLE_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_LOCATIONS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_REQUESTS + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_WIRE_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_DECODED_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_ROWS_WRITTEN + " INTEGER NOT NULL DEFAULT 0, " +
+                            SyncLogEntry.COLUMN_ROWS_DELETED + " INTEGER NOT NULL DEFAULT 0);");
+
+                    db.execSQL("CREATE TRIGGER " + SyncLogEntry.TABLE_NAME +
+                            "_ring AFTER INSERT ON " + SyncLogEntry.TABLE_NAME + " BEGIN " +
+                            "DELETE FROM " + SyncLogEntry.TABLE_NAME + " WHERE " +
+                            SyncLogEntry._ID + " <= NEW." + SyncLogEntry._ID + " - " +
+                            SyncLogEntry.MAX_ENTRIES + "; END;");
+                }
+            },
+            new Migration(4) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // One row per distinct weather id and description, shared by all of the
+                    // hourly rows that use it.
+                    db.execSQL("CREATE TABLE " + ConditionEntry.TABLE_NAME + " (" +
+                            ConditionEntry._ID + " INTEGER PRIMARY KEY," +
+                            ConditionEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                            ConditionEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                            " UNIQUE (" + ConditionEntry.COLUMN_WEATHER_ID + ", " +
+                            ConditionEntry.COLUMN_SHORT_DESC + "));");
+
+                    // The 3-hour forecast.  Every reading is an integer, which SQLite stores in
+                    // as few bytes as the value needs.  The unique index on location and time is
+                    // also what range queries for a location's readings are answered from.
+                    db.execSQL("CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                            HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                            HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                            HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                            HourlyEntry.COLUMN_CONDITION_KEY + " INTEGER NOT NULL, " +
+                            HourlyEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+                            HourlyEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                            HourlyEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                            HourlyEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                            HourlyEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
+
+                            " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                            " FOREIGN KEY (" + HourlyEntry.COLUMN_CONDITION_KEY + ") REFERENCES " +
+                            ConditionEntry.TABLE_NAME + " (" + ConditionEntry._ID + "), " +
+
+                            // A newer forecast for the same period replaces the old one.
+                            " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                            HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);");
+                }
+            },
+            new Migration(5) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // Existing rows get 0, which makes them stale.
+                    db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " ADD COLUMN " +
+                            WeatherEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL DEFAULT 0");
+                }
+            },
+            new Migration(6) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // The weather of one location from a date on, which is how nearly every
+                    // read asks for it; the unique index has the date first, so it can't answer
+                    // that without a scan.  Past the key it holds every weather column of the
+                    // forecast list, so the list is read from the index alone, without visiting
+                    // the table.
+                    db.execSQL("CREATE INDEX " + INDEX_WEATHER_LOCATION_DATE + " ON " +
+                            WeatherEntry.TABLE_NAME + " (" +
+                            WeatherEntry.COLUMN_LOC_KEY + ", " +
+                            WeatherEntry.COLUMN_DATE + ", " +
+                            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                            WeatherEntry.COLUMN_FETCHED_AT + ")");
+                }
+            }
+    };
+
+    private final Context mContext;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // With write-ahead logging, the loaders, widgets and Muzei can keep reading from the
+            // pool's other connections while the sync holds a write transaction open, instead
+            // of waiting for it to commit.
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (db.isWriteAheadLoggingEnabled()) {
+            // These pragmas answer with their new value, so they have to be run as queries.
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        createBaseSchema(sqLiteDatabase);
+        migrate(sqLiteDatabase, BASE_VERSION, DATABASE_VERSION);
+
+        // Whatever ids were cached belonged to a database that no longer exists.
+        LocationIdCache.clear();
+
+        // Start from the last forecasts we had rather than from nothing.
+        ForecastFileCache.restoreAll(mContext, sqLiteDatabase);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Keep the forecasts and locations we have, so that the app doesn't come up empty and
+        // refetch everything after an update.
+        if (oldVersion >= BASE_VERSION) {
+            try {
+                migrate(sqLiteDatabase, oldVersion, newVersion);
+                return;
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error migrating from version " + oldVersion + ", starting over", e);
+            }
+        }
+        // This database is only a cache for online data, so when all else fails it can be
+        // discarded and started over.
+        dropAllTables(sqLiteDatabase);
+        onCreate(sqLiteDatabase);
+    }
+
+    /**
+     * Create the tables as they were at BASE_VERSION.  Like a migration, this must not change.
+     */
+    static void createBaseSchema(SQLiteDatabase sqLiteDatabase) {
         // Create a table to hold locations.  A location consists of the string supplied in the
         // location setting, the city name, and the latitude and longitude
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
@@ -83,16 +277,23 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+    /**
+     * Apply the migrations after fromVersion up to and including toVersion, in order.
+     */
+    static void migrate(SQLiteDatabase sqLiteDatabase, int fromVersion, int toVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > fromVersion && migration.version <= toVersion) {
+                Log.d(LOG_TAG, "Migrating to version " + migration.version);
+                migration.apply(sqLiteDatabase);
+            }
+        }
+    }
+
+    private static void dropAllTables(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ConditionEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncLogEntry.TABLE_NAME);
     }
 }
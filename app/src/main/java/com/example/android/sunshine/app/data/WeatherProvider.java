@@ -17,12 +17,36 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,26 +54,70 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // The uris changed by the batch being applied on this thread, if any, to be notified once it
+    // has been committed.
+    private final ThreadLocal<Set<Uri>> mBatchChangedUris = new ThreadLocal<Set<Uri>>();
+
+    // The uris whose cached queries the batch being applied on this thread changed without
+    // telling observers, to be invalidated again once it has been committed.
+    private final ThreadLocal<Set<Uri>> mBatchInvalidatedUris = new ThreadLocal<Set<Uri>>();
+
+    // The uris changed by writes that asked for their notifications to be deferred, to be
+    // notified when METHOD_FLUSH_NOTIFICATIONS is called.
+    private final Set<Uri> mDeferredChangedUris = new LinkedHashSet<Uri>();
+
+    // The rows of recent queries for the weather of a location, dropped as writes change them.
+    private final QueryResultCache mQueryCache = new QueryResultCache();
+
+    // Moved on by every write that may change weather rows, for copies of them kept outside the
+    // provider to tell whether they are still current.
+    private static final AtomicInteger sWeatherGeneration = new AtomicInteger();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_ID = 103;
     static final int LOCATION = 300;
+    static final int SYNC_LOG = 400;
+    static final int HOURLY = 500;
+    static final int HOURLY_WITH_LOCATION = 501;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The columns of the weather table that aren't also columns of the location table, so that
+    // they can be asked for without qualifying them with the table name.
+    private static final Set<String> sWeatherColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_FETCHED_AT));
 
-    static{
-        sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
-        
-        //This is an inner join which looks like
-        //weather INNER JOIN location ON weather.location_id = location._id
-        sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
-                        WeatherContract.LocationEntry.TABLE_NAME +
-                        " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
-                        "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
-                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
-                        "." + WeatherContract.LocationEntry._ID);
-    }
+    //This is an inner join which looks like
+    //weather INNER JOIN location ON weather.location_id = location._id
+    private static final String sWeatherWithLocationTables =
+            WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                    WeatherContract.LocationEntry.TABLE_NAME +
+                    " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+                    " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry._ID;
+
+    //hourly INNER JOIN weather_condition ON hourly.condition_id = weather_condition._id
+    private static final String sHourlyWithConditionTables =
+            WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                    WeatherContract.ConditionEntry.TABLE_NAME +
+                    " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_CONDITION_KEY +
+                    " = " + WeatherContract.ConditionEntry.TABLE_NAME +
+                    "." + WeatherContract.ConditionEntry._ID;
+
+    // Set while explainQuery runs, to get the plans of the queries rather than their rows.
+    private final ThreadLocal<Boolean> mExplain = new ThreadLocal<Boolean>();
 
     //location.location_setting = ?
     private static final String sLocationSettingSelection =
@@ -68,10 +136,52 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //weather.location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    private static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //hourly.location_id = ? AND time >= ? AND time < ?
+    private static final String sLocationIdAndTimeRangeSelection =
+            WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ";
+
+    private static final String sInsertHourlyStatement =
+            "INSERT INTO " + WeatherContract.HourlyEntry.TABLE_NAME + " (" +
+                    WeatherContract.HourlyEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_CONDITION_KEY + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_TEMP + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_PRESSURE + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_DEGREES +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
 
+        // Nothing from the location table is wanted, so there's no need to join it in.
+        if (isWeatherProjection(projection)) {
+            return getWeatherByLocationId(getLocationId(locationSetting), startDate, projection,
+                    sortOrder);
+        }
+
         String[] selectionArgs;
         String selection;
 
@@ -83,14 +193,11 @@ public class WeatherProvider extends ContentProvider {
             selection = sLocationSettingWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return runQuery(sWeatherWithLocationTables,
                 projection,
                 selection,
                 selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+                sortOrder);
     }
 
     private Cursor getWeatherByLocationSettingAndDate(
@@ -98,14 +205,277 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        if (isWeatherProjection(projection)) {
+            return runQuery(WeatherContract.WeatherEntry.TABLE_NAME,
+                    projection,
+                    sLocationIdAndDaySelection,
+                    new String[]{Long.toString(getLocationId(locationSetting)),
+                            Long.toString(date)},
+                    sortOrder);
+        }
+
+        return runQuery(sWeatherWithLocationTables,
                 projection,
                 sLocationSettingAndDaySelection,
                 new String[]{locationSetting, Long.toString(date)},
+                sortOrder);
+    }
+
+    private Cursor getWeatherByLocationId(
+            long locationId, long startDate, String[] projection, String sortOrder) {
+        String[] selectionArgs;
+        String selection;
+
+        if (startDate == 0) {
+            selection = sLocationIdSelection;
+            selectionArgs = new String[]{Long.toString(locationId)};
+        } else {
+            selectionArgs = new String[]{Long.toString(locationId), Long.toString(startDate)};
+            selection = sLocationIdWithStartDateSelection;
+        }
+
+        return runQuery(WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                sortOrder);
+    }
+
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        long locationId = getLocationId(
+                WeatherContract.HourlyEntry.getLocationSettingFromUri(uri));
+        return runQuery(sHourlyWithConditionTables,
+                projection,
+                sLocationIdAndTimeRangeSelection,
+                new String[]{Long.toString(locationId),
+                        Long.toString(WeatherContract.HourlyEntry.getStartTimeFromUri(uri)),
+                        Long.toString(WeatherContract.HourlyEntry.getEndTimeFromUri(uri))},
+                sortOrder);
+    }
+
+    /*
+        Answers a query for the weather of a location from the QueryResultCache, or else runs it
+        and caches a copy of its rows.  Queries aren't cached while explainQuery is running, nor
+        before API 11, where a cursor's values can't be copied with their types.
+     */
+    private Cursor getCachedWeather(int match, Uri uri, String[] projection, String sortOrder) {
+        String location;
+        String locationSetting;
+        long locationId = -1;
+        long date;
+        boolean fromDate;
+        switch (match) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                location = locationSetting;
+                date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+                fromDate = false;
+                break;
+            case WEATHER_WITH_LOCATION:
+                locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                location = locationSetting;
+                date = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+                fromDate = true;
+                break;
+            case WEATHER_WITH_LOCATION_ID:
+                locationId = WeatherContract.LocationEntry.getLocationIdFromUri(uri);
+                // The setting is only needed to cache the rows.
+                locationSetting = null;
+                location = "#" + locationId;
+                date = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+                fromDate = true;
+                break;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        boolean cacheable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && !Boolean.TRUE.equals(mExplain.get());
+        String key = null;
+        if (cacheable) {
+            key = QueryResultCache.getKey(match, location, date, projection, sortOrder);
+            Cursor cachedCursor = mQueryCache.get(key);
+            if (cachedCursor != null) {
+                return cachedCursor;
+            }
+        }
+
+        int generation = mQueryCache.getGeneration();
+        Cursor cursor;
+        switch (match) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                cursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                break;
+            case WEATHER_WITH_LOCATION:
+                cursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                break;
+            default:
+                cursor = getWeatherByLocationId(locationId, date, projection, sortOrder);
+        }
+        if (!cacheable) {
+            return cursor;
+        }
+        if (locationSetting == null) {
+            locationSetting = getLocationSetting(locationId);
+            if (locationSetting == null) {
+                return cursor;
+            }
+        }
+        return mQueryCache.put(key, locationSetting, date, fromDate, cursor, generation);
+    }
+
+    /*
+        Drop the cached queries whose rows may be changed under the changed uri.
+     */
+    private void invalidateQueryCache(Uri changedUri) {
+        List<String> segments = changedUri.getPathSegments();
+        if (segments.isEmpty()) {
+            sWeatherGeneration.incrementAndGet();
+            mQueryCache.clear();
+            return;
+        }
+        String path = segments.get(0);
+        if (WeatherContract.PATH_WEATHER.equals(path)
+                || WeatherContract.PATH_LOCATION.equals(path)) {
+            sWeatherGeneration.incrementAndGet();
+        }
+        if (WeatherContract.PATH_WEATHER.equals(path)) {
+            if (segments.size() == 1) {
+                mQueryCache.clear();
+            } else if (segments.size() == 2) {
+                mQueryCache.invalidate(segments.get(1));
+            } else {
+                mQueryCache.invalidate(segments.get(1), Long.parseLong(segments.get(2)));
+            }
+        } else if (WeatherContract.PATH_LOCATION.equals(path)) {
+            // The rows of weather joined with the location carry its columns too.
+            mQueryCache.clear();
+        }
+    }
+
+    QueryResultCache getQueryCache() {
+        return mQueryCache;
+    }
+
+    WeatherDbHelper getOpenHelper() {
+        return mOpenHelper;
+    }
+
+    /*
+        Returns the weather generation, to be taken before reading weather rows to keep a copy
+        of, and compared later: if it has moved on, the copy may be out of date.
+     */
+    public static int getWeatherGeneration() {
+        return sWeatherGeneration.get();
+    }
+
+    /*
+        Runs a query on the given tables, the way SQLiteDatabase.query would, unless explainQuery
+        is running, in which case the cursor holds the query's plan instead.
+     */
+    private Cursor runQuery(String tables, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, tables, projection, selection,
+                null, null, sortOrder, null);
+        if (Boolean.TRUE.equals(mExplain.get())) {
+            sql = "EXPLAIN QUERY PLAN " + sql;
+        }
+        return mOpenHelper.getReadableDatabase().rawQuery(sql, selectionArgs);
+    }
+
+    /*
+        Returns the plan SQLite picks for the query that the same call to query would run, one
+        row per step of the plan with the step in the "detail" column, so that tests can check
+        which indexes the provider's queries use.
+     */
+    Cursor explainQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        mExplain.set(Boolean.TRUE);
+        try {
+            return query(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            mExplain.remove();
+        }
+    }
+
+    /*
+        Returns the row ID of the location, or -1 if there is no such location, going to the
+        database only if the location isn't in the LocationIdCache yet.
+     */
+    private long getLocationId(String locationSetting) {
+        long locationId = LocationIdCache.get(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        int generation = LocationIdCache.getGeneration();
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
                 null,
                 null,
-                sortOrder
+                null
         );
+        try {
+            if (cursor.moveToFirst()) {
+                locationId = cursor.getLong(0);
+                LocationIdCache.put(locationSetting, locationId, generation);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationId;
+    }
+
+    /*
+        Returns the setting of the location with the row ID, or null if there is no such
+        location, going to the database only if the location isn't in the LocationIdCache.
+     */
+    private String getLocationSetting(long locationId) {
+        String locationSetting = LocationIdCache.getLocationSetting(locationId);
+        if (locationSetting != null) {
+            return locationSetting;
+        }
+
+        int generation = LocationIdCache.getGeneration();
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                null
+        );
+        try {
+            if (cursor.moveToFirst()) {
+                locationSetting = cursor.getString(0);
+                LocationIdCache.put(locationSetting, locationId, generation);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationSetting;
+    }
+
+    /*
+        Returns true if the projection only asks for columns of the weather table, which means a
+        query for weather by location can be answered without joining in the location table.
+     */
+    private static boolean isWeatherProjection(String[] projection) {
+        if (projection == null) {
+            // Every column of the join, including the location's
+            return false;
+        }
+        for (String column : projection) {
+            if (!column.startsWith(WeatherContract.WeatherEntry.TABLE_NAME + ".")
+                    && !sWeatherColumns.contains(column)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /*
@@ -130,6 +500,13 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER,
+                WEATHER_WITH_LOCATION_ID);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_LOG, SYNC_LOG);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
         return matcher;
     }
 
@@ -160,10 +537,17 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_WITH_LOCATION_ID:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_LOG:
+                return WeatherContract.SyncLogEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -175,49 +559,78 @@ public class WeatherProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
+        Uri notificationUri = uri;
         switch (sUriMatcher.match(uri)) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                retCursor = getCachedWeather(
+                        WEATHER_WITH_LOCATION_AND_DATE, uri, projection, sortOrder);
                 break;
             }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = getCachedWeather(WEATHER_WITH_LOCATION, uri, projection, sortOrder);
+                break;
+            }
+            // "location/#/weather"
+            case WEATHER_WITH_LOCATION_ID: {
+                retCursor = getCachedWeather(WEATHER_WITH_LOCATION_ID, uri, projection, sortOrder);
+                // Weather writes are announced under the weather uris of the location's setting,
+                // not this one.
+                String locationSetting = getLocationSetting(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri));
+                notificationUri = locationSetting != null
+                        ? WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting)
+                        : WeatherContract.WeatherEntry.CONTENT_URI;
                 break;
             }
             // "weather"
             case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                retCursor = runQuery(WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
+                        sortOrder);
                 break;
             }
             // "location"
             case LOCATION: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.LocationEntry.TABLE_NAME,
+                retCursor = runQuery(WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder);
+                break;
+            }
+            // "sync_log"
+            case SYNC_LOG: {
+                retCursor = runQuery(WeatherContract.SyncLogEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
+                        sortOrder);
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = runQuery(sHourlyWithConditionTables,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder);
                 break;
             }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
@@ -233,17 +646,54 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = upsertWeather(db, values, true);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                Changes changes = new Changes();
+                changes.add(values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                notifyChanges(uri, WeatherContract.WeatherEntry.CONTENT_URI, changes);
+                return returnUri;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                /*
+                    A location that is already stored, e.g. because another write added it after
+                    the caller last looked, gives back the stored row instead of failing on the
+                    unique location setting, which would fail a whole sync batch with it.  The
+                    lookup and the insert share a transaction, so nothing can add the location in
+                    between.
+                 */
+                String locationSetting = values.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                long _id;
+                boolean inserted = false;
+                beginTransaction(db);
+                try {
+                    _id = locationSetting != null ? getLocationId(locationSetting) : -1;
+                    if (_id == -1) {
+                        _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                        inserted = _id > 0;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                } else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                if (!inserted) {
+                    return returnUri;
+                }
+                LocationIdCache.put(locationSetting, _id, LocationIdCache.getGeneration());
+                break;
+            }
+            case SYNC_LOG: {
+                long _id = db.insert(WeatherContract.SyncLogEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
@@ -251,7 +701,7 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri, withoutQuery(uri));
         return returnUri;
     }
 
@@ -262,21 +712,62 @@ public class WeatherProvider extends ContentProvider {
         int rowsDeleted;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
+        Changes changes = null;
         switch (match) {
             case WEATHER:
+                changes = findChanges(db, WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE, selection, selectionArgs);
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
-            case LOCATION:
+            case LOCATION: {
+                int hourlyDeleted;
+                beginTransaction(db);
+                try {
+                    // The 3-hour forecast is only ever reached through its location, so it goes
+                    // with it rather than being left behind where nothing can see it.
+                    hourlyDeleted = db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " IN (SELECT " +
+                                    WeatherContract.LocationEntry._ID + " FROM " +
+                                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                                    selection + ")",
+                            selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsDeleted != 0) {
+                    LocationIdCache.clear();
+                }
+                if (hourlyDeleted != 0) {
+                    notifyChange(uri, WeatherContract.HourlyEntry.CONTENT_URI);
+                }
+                break;
+            }
+            case SYNC_LOG:
                 rowsDeleted = db.delete(
-                        WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                        WeatherContract.SyncLogEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                changes = findChanges(db, WeatherContract.HourlyEntry.TABLE_NAME,
+                        WeatherContract.HourlyEntry.COLUMN_LOC_KEY, null, selection,
+                        selectionArgs);
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changes != null) {
+                notifyChanges(uri, withoutQuery(uri), changes);
+            } else {
+                notifyChange(uri, withoutQuery(uri));
+            }
         }
         return rowsDeleted;
     }
@@ -299,49 +790,617 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER:
                 normalizeDate(values);
+                if (values.size() == 1
+                        && values.containsKey(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT)) {
+                    // Only the fetch time changed, which doesn't change what the forecast
+                    // looks like, so observers aren't told.  The cached queries still have to
+                    // go, since the list reads the fetch time to decide whether to sync.
+                    Changes fetchedChanges = findChanges(db,
+                            WeatherContract.WeatherEntry.TABLE_NAME,
+                            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                            WeatherContract.WeatherEntry.COLUMN_DATE, selection, selectionArgs);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    if (rowsUpdated != 0) {
+                        invalidateChanges(WeatherContract.WeatherEntry.CONTENT_URI,
+                                fetchedChanges);
+                    }
+                    return rowsUpdated;
+                }
+                Changes changes;
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                        || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                    // The rows move to other locations or dates, which can't be known in advance.
+                    changes = new Changes();
+                    changes.addAll();
+                } else {
+                    changes = findChanges(db, WeatherContract.WeatherEntry.TABLE_NAME,
+                            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                            WeatherContract.WeatherEntry.COLUMN_DATE, selection, selectionArgs);
+                }
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
-                break;
+                if (rowsUpdated != 0) {
+                    notifyChanges(uri, WeatherContract.WeatherEntry.CONTENT_URI, changes);
+                }
+                return rowsUpdated;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    LocationIdCache.clear();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri, withoutQuery(uri));
         }
         return rowsUpdated;
     }
 
+    //weather.location_id = ? AND date = ?
+    private static final String sWeatherLocationIdAndDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    /*
+        Write a weather row, updating the row already stored for its location and date in place
+        if there is one.  Unlike the table's ON CONFLICT REPLACE, which deletes the old row and
+        inserts a new one, this keeps the row's _ID, so anything that tracks rows by id (the
+        widget's stable ids, the list's checked items) still recognizes it afterwards.
+
+        Returns the row ID of the written row, or -1 if it couldn't be written.  Callers that only
+        count the rows written can pass false for needRowId, and get 0 for an updated row rather
+        than having its id looked up.
+     */
+    private long upsertWeather(SQLiteDatabase db, ContentValues values, boolean needRowId) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            String[] selectionArgs = new String[]{Long.toString(locationId), Long.toString(date)};
+            int rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                    sWeatherLocationIdAndDateSelection, selectionArgs);
+            if (rowsUpdated > 0) {
+                if (!needRowId) {
+                    return 0;
+                }
+                return DatabaseUtils.longForQuery(db,
+                        "SELECT " + WeatherContract.WeatherEntry._ID +
+                                " FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                                " WHERE " + sWeatherLocationIdAndDateSelection,
+                        selectionArgs);
+            }
+        }
+        return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+    }
+
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
-            case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+            case WEATHER: {
+                int returnCount;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    returnCount = bulkInsertWeather(db, values);
+                } else {
+                    returnCount = 0;
+                    beginTransaction(db);
+                    try {
+                        for (ContentValues value : values) {
+                            normalizeDate(value);
+                            if (upsertWeather(db, value, false) != -1) {
+                                returnCount++;
+                            }
                         }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
                     }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                // The dates were normalized in place while the rows were written.
+                Changes changes = new Changes();
+                for (ContentValues value : values) {
+                    changes.add(value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                            value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                }
+                notifyChanges(uri, WeatherContract.WeatherEntry.CONTENT_URI, changes);
                 return returnCount;
+            }
+            case HOURLY: {
+                int returnCount = bulkInsertHourly(db, values);
+                Changes changes = new Changes();
+                for (ContentValues value : values) {
+                    changes.add(value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY), null);
+                }
+                notifyChanges(uri, WeatherContract.HourlyEntry.CONTENT_URI, changes);
+                return returnCount;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /*
+        The compiled statements that write weather rows with one set of columns.
+     */
+    private static class WeatherStatements {
+        final String[] columns;
+        final SQLiteStatement insert;
+        // Null if the columns don't include both the location and the date
+        final SQLiteStatement update;
+
+        WeatherStatements(SQLiteDatabase db, String[] columns) {
+            this.columns = columns;
+            StringBuilder insertSql = new StringBuilder("INSERT INTO ")
+                    .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" (");
+            StringBuilder valuesSql = new StringBuilder(") VALUES (");
+            StringBuilder updateSql = new StringBuilder("UPDATE ")
+                    .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" SET ");
+            boolean hasLocation = false;
+            boolean hasDate = false;
+            for (int i = 0; i < columns.length; i++) {
+                String separator = i > 0 ? ", " : "";
+                insertSql.append(separator).append(columns[i]);
+                valuesSql.append(separator).append('?');
+                updateSql.append(separator).append(columns[i]).append(" = ?");
+                hasLocation |= columns[i].equals(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                hasDate |= columns[i].equals(WeatherContract.WeatherEntry.COLUMN_DATE);
+            }
+            insert = db.compileStatement(insertSql.append(valuesSql).append(')').toString());
+            update = hasLocation && hasDate ? db.compileStatement(updateSql.append(" WHERE ")
+                    .append(sWeatherLocationIdAndDateSelection).toString()) : null;
+        }
+
+        void close() {
+            insert.close();
+            if (update != null) {
+                update.close();
+            }
+        }
+    }
+
+    /*
+        Write weather rows in one transaction, updating the row already stored for a location
+        and date in place, as upsertWeather does.  Rather than having SQLiteDatabase build the
+        SQL for every row from its keys, the update and insert for each set of columns are
+        compiled once and the values of each row bound to them by position, and all of the
+        dates are normalized by one DateNormalizer.
+
+        Returns the number of rows written.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int bulkInsertWeather(SQLiteDatabase db, ContentValues[] values) {
+        DateNormalizer dateNormalizer = new DateNormalizer();
+        Map<String, WeatherStatements> statementsByColumns =
+                new HashMap<String, WeatherStatements>();
+        int returnCount = 0;
+        beginTransaction(db);
+        try {
+            for (ContentValues value : values) {
+                Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (date != null) {
+                    date = dateNormalizer.normalize(date);
+                    value.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+                }
+
+                String[] columns = getSortedColumns(value);
+                String columnsKey = TextUtils.join(",", columns);
+                WeatherStatements statements = statementsByColumns.get(columnsKey);
+                if (statements == null) {
+                    statements = new WeatherStatements(db, columns);
+                    statementsByColumns.put(columnsKey, statements);
+                }
+
+                if (statements.update != null && locationId != null && date != null) {
+                    SQLiteStatement update = statements.update;
+                    update.clearBindings();
+                    bindColumns(update, statements.columns, value);
+                    update.bindLong(columns.length + 1, locationId);
+                    update.bindLong(columns.length + 2, date);
+                    if (update.executeUpdateDelete() > 0) {
+                        returnCount++;
+                        continue;
+                    }
+                }
+                SQLiteStatement insert = statements.insert;
+                insert.clearBindings();
+                bindColumns(insert, statements.columns, value);
+                try {
+                    if (insert.executeInsert() != -1) {
+                        returnCount++;
+                    }
+                } catch (SQLiteConstraintException e) {
+                    // Like SQLiteDatabase.insert, leave out a row that can't be written.
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            for (WeatherStatements statements : statementsByColumns.values()) {
+                statements.close();
+            }
+        }
+        return returnCount;
+    }
+
+    private static String[] getSortedColumns(ContentValues values) {
+        Set<Map.Entry<String, Object>> valueSet = values.valueSet();
+        String[] columns = new String[valueSet.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : valueSet) {
+            columns[i++] = entry.getKey();
+        }
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    private static void bindColumns(SQLiteStatement statement, String[] columns,
+                                    ContentValues values) {
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+    }
+
+    /*
+        Begin a transaction that only locks out other writers.  In write-ahead logging mode that
+        lets readers on other connections go on reading what was last committed meanwhile.
+     */
+    private static void beginTransaction(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            db.beginTransactionNonExclusive();
+        } else {
+            db.beginTransaction();
+        }
+    }
+
+    /*
+        Write hourly rows in one transaction through a single compiled insert, so that storing
+        some 40 rows per location costs little more than binding their values.  Each row's
+        weather id and description are swapped for the id of their condition, which is added
+        first if it's new.
+
+        Returns the number of rows written.
+     */
+    private int bulkInsertHourly(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        beginTransaction(db);
+        try {
+            Map<String, Long> conditionIds = loadConditionIds(db);
+            SQLiteStatement insert = db.compileStatement(sInsertHourlyStatement);
+            try {
+                for (ContentValues value : values) {
+                    insert.clearBindings();
+                    insert.bindLong(1, getRequiredLong(value,
+                            WeatherContract.HourlyEntry.COLUMN_LOC_KEY));
+                    insert.bindLong(2, getRequiredLong(value,
+                            WeatherContract.HourlyEntry.COLUMN_TIME));
+                    insert.bindLong(3, getConditionId(db, conditionIds,
+                            getRequiredLong(value, WeatherContract.HourlyEntry.COLUMN_WEATHER_ID),
+                            value.getAsString(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC)));
+                    insert.bindLong(4, getRequiredLong(value,
+                            WeatherContract.HourlyEntry.COLUMN_TEMP));
+                    insert.bindLong(5, getRequiredLong(value,
+                            WeatherContract.HourlyEntry.COLUMN_HUMIDITY));
+                    insert.bindLong(6, getRequiredLong(value,
+                            WeatherContract.HourlyEntry.COLUMN_PRESSURE));
+                    insert.bindLong(7, getRequiredLong(value,
+                            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED));
+                    insert.bindLong(8, getRequiredLong(value,
+                            WeatherContract.HourlyEntry.COLUMN_DEGREES));
+                    if (insert.executeInsert() != -1) {
+                        returnCount++;
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /*
+        Returns the ids of the conditions stored so far, by conditionKey.  There are only ever a
+        few dozen of them.
+     */
+    private static Map<String, Long> loadConditionIds(SQLiteDatabase db) {
+        Map<String, Long> conditionIds = new HashMap<String, Long>();
+        Cursor cursor = db.query(WeatherContract.ConditionEntry.TABLE_NAME,
+                new String[]{WeatherContract.ConditionEntry._ID,
+                        WeatherContract.ConditionEntry.COLUMN_WEATHER_ID,
+                        WeatherContract.ConditionEntry.COLUMN_SHORT_DESC},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                conditionIds.put(conditionKey(cursor.getLong(1), cursor.getString(2)),
+                        cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return conditionIds;
+    }
+
+    private static long getConditionId(SQLiteDatabase db, Map<String, Long> conditionIds,
+                                       long weatherId, String shortDesc) {
+        if (shortDesc == null) {
+            throw new IllegalArgumentException(
+                    "No value for " + WeatherContract.HourlyEntry.COLUMN_SHORT_DESC);
+        }
+        String key = conditionKey(weatherId, shortDesc);
+        Long conditionId = conditionIds.get(key);
+        if (conditionId == null) {
+            ContentValues conditionValues = new ContentValues();
+            conditionValues.put(WeatherContract.ConditionEntry.COLUMN_WEATHER_ID, weatherId);
+            conditionValues.put(WeatherContract.ConditionEntry.COLUMN_SHORT_DESC, shortDesc);
+            conditionId = db.insertOrThrow(WeatherContract.ConditionEntry.TABLE_NAME, null,
+                    conditionValues);
+            conditionIds.put(key, conditionId);
+        }
+        return conditionId;
+    }
+
+    private static String conditionKey(long weatherId, String shortDesc) {
+        return weatherId + ":" + shortDesc;
+    }
+
+    private static long getRequiredLong(ContentValues values, String column) {
+        Long value = values.getAsLong(column);
+        if (value == null) {
+            throw new IllegalArgumentException("No value for " + column);
+        }
+        return value;
+    }
+
+    /*
+        Apply the whole batch in one transaction, so that observers never see half of it, and
+        hold back the change notifications of the individual operations until it has been
+        committed.  Each changed uri is then notified once, rather than once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> changedUris = new LinkedHashSet<Uri>();
+        Set<Uri> invalidatedUris = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+        mBatchChangedUris.set(changedUris);
+        mBatchInvalidatedUris.set(invalidatedUris);
+        boolean successful = false;
+        beginTransaction(db);
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.remove();
+            mBatchInvalidatedUris.remove();
+            if (!successful) {
+                // Locations inserted by the batch were rolled back, so forget their ids.
+                LocationIdCache.clear();
+            }
+        }
+        for (Uri uri : invalidatedUris) {
+            invalidateQueryCache(uri);
+        }
+        notifyChangesNow(changedUris);
+        return results;
+    }
+
+    /*
+        Send the notifications held back by writes whose uris were made with
+        WeatherContract.deferNotifications.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_FLUSH_NOTIFICATIONS.equals(method)) {
+            Set<Uri> changedUris;
+            synchronized (mDeferredChangedUris) {
+                changedUris = new LinkedHashSet<Uri>(mDeferredChangedUris);
+                mDeferredChangedUris.clear();
+            }
+            notifyChangesNow(changedUris);
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /*
+        The locations, and for each the date, that a write changed rows of.  A location whose
+        rows changed on more than one date, or on dates that aren't known, is kept with
+        ANY_DATE, and a write that may have changed rows anywhere is marked as changing all.
+     */
+    private static class Changes {
+        static final long ANY_DATE = Long.MIN_VALUE;
+
+        final Map<Long, Long> dates = new LinkedHashMap<Long, Long>();
+        boolean all;
+
+        void add(Long locationId, Long date) {
+            if (locationId == null) {
+                all = true;
+                return;
+            }
+            Long knownDate = dates.get(locationId);
+            if (knownDate == null) {
+                dates.put(locationId, date != null ? date : ANY_DATE);
+            } else if (!knownDate.equals(date)) {
+                dates.put(locationId, ANY_DATE);
+            }
+        }
+
+        void addAll() {
+            all = true;
+        }
+    }
+
+    /*
+        Returns the locations, and the dates if dateColumn isn't null, of the rows of the table that
+        the selection picks, to be looked up before they are changed or deleted.  A selection of
+        every row is taken to change all of them without looking.
+     */
+    private static Changes findChanges(SQLiteDatabase db, String table, String locationColumn,
+                                       String dateColumn, String selection,
+                                       String[] selectionArgs) {
+        Changes changes = new Changes();
+        if (selection == null || "1".equals(selection)) {
+            changes.addAll();
+            return changes;
+        }
+        String columns = dateColumn != null ? locationColumn + ", " + dateColumn : locationColumn;
+        Cursor cursor = db.rawQuery("SELECT DISTINCT " + columns + " FROM " + table +
+                " WHERE " + selection, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                changes.add(cursor.getLong(0), dateColumn != null ? cursor.getLong(1) : null);
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+
+    /*
+        Notify the uris of the locations and dates changed in the table with the given content
+        uri: contentUri/<location setting>/<date> when a location changed on one date only, and
+        contentUri/<location setting> otherwise.  Observers of contentUri itself, and cursors
+        registered on it, hear about every one of them, since they watch its descendants.
+     */
+    private void notifyChanges(Uri requestUri, Uri contentUri, Changes changes) {
+        for (Uri changedUri : getChangedUris(contentUri, changes)) {
+            notifyChange(requestUri, changedUri);
+        }
+    }
+
+    /*
+        Drop the cached queries of the locations and dates changed, as notifyChanges would, but
+        without telling observers.
+     */
+    private void invalidateChanges(Uri contentUri, Changes changes) {
+        Set<Uri> batchInvalidatedUris = mBatchInvalidatedUris.get();
+        for (Uri changedUri : getChangedUris(contentUri, changes)) {
+            invalidateQueryCache(changedUri);
+            if (batchInvalidatedUris != null) {
+                batchInvalidatedUris.add(changedUri);
+            }
+        }
+    }
+
+    private List<Uri> getChangedUris(Uri contentUri, Changes changes) {
+        if (changes.all) {
+            return Collections.singletonList(contentUri);
+        }
+        List<Uri> changedUris = new ArrayList<Uri>(changes.dates.size());
+        for (Map.Entry<Long, Long> entry : changes.dates.entrySet()) {
+            String locationSetting = getLocationSetting(entry.getKey());
+            if (locationSetting == null) {
+                // The location itself is gone, so whoever showed it can't be told apart.
+                return Collections.singletonList(contentUri);
+            }
+            Uri.Builder changedUri = contentUri.buildUpon().appendPath(locationSetting);
+            if (entry.getValue() != Changes.ANY_DATE) {
+                changedUri.appendPath(Long.toString(entry.getValue()));
+            }
+            changedUris.add(changedUri.build());
+        }
+        return changedUris;
+    }
+
+    /*
+        Drop the cached queries that the change may affect and notify the changed uri, unless
+        the write's request uri asked for its notifications to be deferred, or it is part of a
+        batch, in which case the notification is held back until the flush or the end of the
+        batch.
+     */
+    private void notifyChange(Uri requestUri, Uri changedUri) {
+        invalidateQueryCache(changedUri);
+        if (requestUri.getQueryParameter(WeatherContract.PARAM_DEFER_NOTIFICATIONS) != null) {
+            synchronized (mDeferredChangedUris) {
+                mDeferredChangedUris.add(changedUri);
+            }
+            return;
+        }
+        Set<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            batchChangedUris.add(changedUri);
+        } else {
+            getContext().getContentResolver().notifyChange(changedUri, null);
+        }
+    }
+
+    /*
+        Notify each of the uris once, leaving out those whose ancestor is notified too, since its
+        observers hear about the ancestor anyway.
+     */
+    private void notifyChangesNow(Set<Uri> changedUris) {
+        List<String> prefixes = new ArrayList<String>(changedUris.size());
+        for (Uri uri : changedUris) {
+            prefixes.add(uri.toString() + "/");
+        }
+        for (Uri uri : changedUris) {
+            String uriString = uri.toString();
+            boolean covered = false;
+            for (String prefix : prefixes) {
+                if (uriString.startsWith(prefix)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                // Again, now that the write has been committed, in case a query that started
+                // during its transaction cached the rows from before it.
+                invalidateQueryCache(uri);
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+    }
+
+    private static Uri withoutQuery(Uri uri) {
+        return uri.buildUpon().clearQuery().build();
+    }
+
+    /*
+        Print how the query cache is doing and the sync log, newest first, for "adb shell
+        dumpsys activity provider com.example.android.sunshine.app/.data.WeatherProvider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mQueryCache.dump(writer);
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.SyncLogEntry.TABLE_NAME,
+                null,
+                null,
+                null,
+                null,
+                null,
+                WeatherContract.SyncLogEntry._ID + " DESC"
+        );
+        try {
+            writer.println("Last " + cursor.getCount() + " syncs:");
+            String[] columns = cursor.getColumnNames();
+            while (cursor.moveToNext()) {
+                StringBuilder line = new StringBuilder("  ");
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) {
+                        line.append(' ');
+                    }
+                    line.append(columns[i]).append('=').append(cursor.getString(i));
+                }
+                writer.println(line);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
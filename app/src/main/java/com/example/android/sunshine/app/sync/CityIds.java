@@ -0,0 +1,64 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers which OpenWeatherMap city each location setting resolved to, so that later syncs
+ * can ask for the city by id, and locations that turned out to be the same city can share one
+ * request.
+ *
+ * A location picked on the map is looked up by its coordinates, which can change while its
+ * setting stays the same, so the coordinates a city was resolved from are kept with it and the
+ * city is forgotten once they no longer match.
+ */
+class CityIds {
+    private static final String PREFS_NAME = "location_city_ids";
+    private static final String COORDINATES_SUFFIX = "/coordinates";
+
+    private CityIds() {
+    }
+
+    /**
+     * @param coordinates the coordinates the location is looked up by, or null if it is looked
+     *                    up by its setting
+     * @return the city id for the location setting, or 0 if it hasn't been resolved yet or was
+     *         resolved from other coordinates
+     */
+    static long get(Context context, String locationSetting, String coordinates) {
+        SharedPreferences prefs = getPrefs(context);
+        String resolvedFrom = prefs.getString(locationSetting + COORDINATES_SUFFIX, null);
+        if (coordinates == null ? resolvedFrom != null : !coordinates.equals(resolvedFrom)) {
+            return 0;
+        }
+        return prefs.getLong(locationSetting, 0);
+    }
+
+    /**
+     * Store the city ids for the given location settings.  This should not be called from the UI
+     * thread because it uses commit to write to the shared preferences.
+     */
+    static void put(Context context, String[] locationSettings, String[] coordinates,
+                    long[] cityIds) {
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        for (int i = 0; i < locationSettings.length; i++) {
+            String coordinatesKey = locationSettings[i] + COORDINATES_SUFFIX;
+            if (cityIds[i] > 0) {
+                editor.putLong(locationSettings[i], cityIds[i]);
+                if (coordinates[i] != null) {
+                    editor.putString(coordinatesKey, coordinates[i]);
+                } else {
+                    editor.remove(coordinatesKey);
+                }
+            } else {
+                editor.remove(locationSettings[i]);
+                editor.remove(coordinatesKey);
+            }
+        }
+        editor.commit();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
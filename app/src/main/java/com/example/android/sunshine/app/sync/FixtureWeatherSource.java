@@ -0,0 +1,73 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Serves forecasts from JSON fixture files instead of the network, so that the sync path can be
+ * exercised and timed without network access or an API key.
+ *
+ * The fixture for a location is read from "&lt;location setting&gt;.json" in the fixture
+ * directory, falling back to "default.json" when there is no file for that location.  The 3-hour
+ * forecast is read the same way from "&lt;location setting&gt;.hourly.json" and
+ * "default.hourly.json".  The file's
+ * modification time is used as its validator, so a fixture that hasn't been touched since the
+ * last request is reported as not modified.
+ */
+public class FixtureWeatherSource implements WeatherSource {
+    static final String DEFAULT_FIXTURE = "default.json";
+    static final String DEFAULT_HOURLY_FIXTURE = "default.hourly.json";
+
+    private final File mFixtureDir;
+
+    public FixtureWeatherSource(File fixtureDir) {
+        mFixtureDir = fixtureDir;
+    }
+
+    @Override
+    public ForecastResponse fetchForecast(ForecastRequest request) throws IOException {
+        return fetch(getFixture(request.locationSetting + ".json", DEFAULT_FIXTURE), request);
+    }
+
+    @Override
+    public ForecastResponse fetchHourlyForecast(ForecastRequest request) throws IOException {
+        return fetch(getFixture(request.locationSetting + ".hourly.json", DEFAULT_HOURLY_FIXTURE),
+                request);
+    }
+
+    private ForecastResponse fetch(File fixture, ForecastRequest request) throws IOException {
+        if (!fixture.isFile()) {
+            throw new FileNotFoundException("No fixture for " + request.locationSetting
+                    + " in " + mFixtureDir);
+        }
+
+        String lastModified = Long.toString(fixture.lastModified());
+        if (lastModified.equals(request.lastModified)) {
+            return new ForecastResponse(HttpURLConnection.HTTP_NOT_MODIFIED, null, lastModified,
+                    null, null);
+        }
+
+        // Fixtures are stored uncompressed, so what's on the "wire" is what gets decoded.
+        CountingInputStream wireStream = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(fixture)));
+        return new ForecastResponse(HttpURLConnection.HTTP_OK, null, lastModified,
+                wireStream, new CountingInputStream(wireStream));
+    }
+
+    @Override
+    public String getHost() {
+        return mFixtureDir.getAbsolutePath();
+    }
+
+    private File getFixture(String name, String defaultName) {
+        File fixture = new File(mFixtureDir, name);
+        if (fixture.isFile()) {
+            return fixture;
+        }
+        return new File(mFixtureDir, defaultName);
+    }
+}
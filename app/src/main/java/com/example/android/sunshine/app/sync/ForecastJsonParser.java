@@ -0,0 +1,529 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Parses the OpenWeatherMap daily and 3-hour forecast responses.
+ *
+ * On Honeycomb and higher the response is pulled straight off the network stream with a
+ * {@link JsonReader}, and each day is handed to the {@link Callback} as soon as it has been read,
+ * so we never hold the whole payload (or a tree built from it) in memory.  JsonReader does not
+ * exist on Gingerbread, so there we fall back to reading the payload and walking an org.json tree.
+ */
+class ForecastJsonParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // The 3-hour forecast has a period per element of "list", with the readings spread over
+    // child objects rather than at the top level like the daily forecast's.
+    private static final String OWM_TIME = "dt";
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_TEMP = "temp";
+    private static final String OWM_WIND = "wind";
+
+    /**
+     * Receives the pieces of the forecast as they are parsed.
+     */
+    interface Callback {
+        /**
+         * Called once with the city the forecast is for.  This may arrive before or after the
+         * days, depending on the order the server wrote the fields in.
+         *
+         * @param cityId OpenWeatherMap's id for the city, or 0 if it didn't send one
+         */
+        void onCity(long cityId, String cityName, double lat, double lon);
+
+        /**
+         * Called for each day of the forecast, in order.  The values hold every weather column
+         * except the location key and the date, which are up to the caller.  Throwing stops the
+         * parse.
+         */
+        void onDay(int dayIndex, ContentValues weatherValues) throws IOException;
+    }
+
+    /**
+     * Receives the periods of the 3-hour forecast as they are parsed.
+     */
+    interface HourlyCallback {
+        /**
+         * Called for each period of the forecast, in order.  The values hold every hourly column
+         * except the location key, with the condition given by its weather id and description.
+         */
+        void onPeriod(ContentValues hourlyValues) throws IOException;
+    }
+
+    private ForecastJsonParser() {
+    }
+
+    /**
+     * Parse the forecast from the given reader.
+     *
+     * @return the message code reported by the server, or HTTP_OK if there was none.  Nothing is
+     * passed to the callback when the code is not HTTP_OK.
+     */
+    static int parse(Reader reader, Callback callback) throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStreaming(reader, callback);
+        }
+        return parseTree(readFully(reader), callback);
+    }
+
+    /**
+     * Parse the 3-hour forecast from the given reader.  The city is left out, since the daily
+     * forecast has already told us about it.
+     *
+     * @return the message code reported by the server, or HTTP_OK if there was none.  Nothing is
+     * passed to the callback when the code is not HTTP_OK.
+     */
+    static int parseHourly(Reader reader, HourlyCallback callback)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseHourlyStreaming(reader, callback);
+        }
+        return parseHourlyTree(readFully(reader), callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int parseStreaming(Reader in, Callback callback)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            int messageCode = HttpURLConnection.HTTP_OK;
+            boolean sawCity = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    // The code is sometimes sent as a string, which nextInt copes with.
+                    messageCode = reader.nextInt();
+                    if (messageCode != HttpURLConnection.HTTP_OK) {
+                        return messageCode;
+                    }
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, callback);
+                    sawCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    int dayIndex = 0;
+                    while (reader.hasNext()) {
+                        callback.onDay(dayIndex++, readDay(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!sawCity) {
+                throw new JSONException("No value for " + OWM_CITY);
+            }
+            return messageCode;
+        } catch (IllegalStateException e) {
+            // JsonReader reports an unexpected token type this way.
+            throw new JSONException(e.getMessage());
+        } catch (MalformedJsonException e) {
+            // The server answered, it just didn't answer with JSON.
+            throw new JSONException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        long cityId = 0;
+        String cityName = null;
+        Double lat = null;
+        Double lon = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = reader.nextLong();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        callback.onCity(cityId, require(cityName, OWM_CITY_NAME),
+                require(lat, OWM_LATITUDE), require(lon, OWM_LONGITUDE));
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readDay(JsonReader reader) throws IOException, JSONException {
+        Double pressure = null;
+        Integer humidity = null;
+        Double windSpeed = null;
+        Double windDirection = null;
+        Double high = null;
+        Double low = null;
+        String description = null;
+        Integer weatherId = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                humidity = reader.nextInt();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return buildWeatherValues(require(pressure, OWM_PRESSURE), require(humidity, OWM_HUMIDITY),
+                require(windSpeed, OWM_WINDSPEED), require(windDirection, OWM_WIND_DIRECTION),
+                require(high, OWM_MAX), require(low, OWM_MIN),
+                require(description, OWM_DESCRIPTION), require(weatherId, OWM_WEATHER_ID));
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int parseHourlyStreaming(Reader in, HourlyCallback callback)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            int messageCode = HttpURLConnection.HTTP_OK;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    messageCode = reader.nextInt();
+                    if (messageCode != HttpURLConnection.HTTP_OK) {
+                        return messageCode;
+                    }
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        callback.onPeriod(readPeriod(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return messageCode;
+        } catch (IllegalStateException e) {
+            throw new JSONException(e.getMessage());
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readPeriod(JsonReader reader) throws IOException, JSONException {
+        Long time = null;
+        Double temperature = null;
+        Double pressure = null;
+        Integer humidity = null;
+        Double windSpeed = null;
+        Double windDirection = null;
+        String description = null;
+        Integer weatherId = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                time = reader.nextLong();
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMP.equals(mainName)) {
+                        temperature = reader.nextDouble();
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        pressure = reader.nextDouble();
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        humidity = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        windSpeed = reader.nextDouble();
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Only the first condition counts, as with the daily forecast.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // OpenWeatherMap leaves the wind direction out when there is no wind.
+        return buildHourlyValues(require(time, OWM_TIME), require(temperature, OWM_TEMP),
+                require(pressure, OWM_PRESSURE), require(humidity, OWM_HUMIDITY),
+                windSpeed != null ? windSpeed : 0, windDirection != null ? windDirection : 0,
+                require(description, OWM_DESCRIPTION), require(weatherId, OWM_WEATHER_ID));
+    }
+
+    private static int parseTree(String forecastJsonStr, Callback callback)
+            throws IOException, JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        callback.onCity(cityJson.optLong(OWM_CITY_ID), cityJson.getString(OWM_CITY_NAME),
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            callback.onDay(i, buildWeatherValues(
+                    dayForecast.getDouble(OWM_PRESSURE),
+                    dayForecast.getInt(OWM_HUMIDITY),
+                    dayForecast.getDouble(OWM_WINDSPEED),
+                    dayForecast.getDouble(OWM_WIND_DIRECTION),
+                    temperatureObject.getDouble(OWM_MAX),
+                    temperatureObject.getDouble(OWM_MIN),
+                    weatherObject.getString(OWM_DESCRIPTION),
+                    weatherObject.getInt(OWM_WEATHER_ID)));
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    private static int parseHourlyTree(String forecastJsonStr, HourlyCallback callback)
+            throws IOException, JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray periodArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < periodArray.length(); i++) {
+            JSONObject period = periodArray.getJSONObject(i);
+            JSONObject mainObject = period.getJSONObject(OWM_MAIN);
+            JSONObject weatherObject = period.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            JSONObject windObject = period.optJSONObject(OWM_WIND);
+
+            callback.onPeriod(buildHourlyValues(
+                    period.getLong(OWM_TIME),
+                    mainObject.getDouble(OWM_TEMP),
+                    mainObject.getDouble(OWM_PRESSURE),
+                    mainObject.getInt(OWM_HUMIDITY),
+                    windObject != null ? windObject.optDouble(OWM_WINDSPEED, 0) : 0,
+                    windObject != null ? windObject.optDouble(OWM_WIND_DIRECTION, 0) : 0,
+                    weatherObject.getString(OWM_DESCRIPTION),
+                    weatherObject.getInt(OWM_WEATHER_ID)));
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    private static ContentValues buildWeatherValues(double pressure, int humidity,
+            double windSpeed, double windDirection, double high, double low,
+            String description, int weatherId) {
+        ContentValues weatherValues = new ContentValues();
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+
+        return weatherValues;
+    }
+
+    private static ContentValues buildHourlyValues(long time, double temperature,
+            double pressure, int humidity, double windSpeed, double windDirection,
+            String description, int weatherId) {
+        ContentValues hourlyValues = new ContentValues();
+
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TIME, time);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                WeatherContract.HourlyEntry.toFixedPoint(temperature,
+                        WeatherContract.HourlyEntry.TEMP_SCALE));
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                WeatherContract.HourlyEntry.toFixedPoint(pressure,
+                        WeatherContract.HourlyEntry.PRESSURE_SCALE));
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, humidity);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                WeatherContract.HourlyEntry.toFixedPoint(windSpeed,
+                        WeatherContract.HourlyEntry.WIND_SPEED_SCALE));
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES,
+                Math.round(windDirection));
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, description);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, weatherId);
+
+        return hourlyValues;
+    }
+
+    private static <T> T require(T value, String name) throws JSONException {
+        if (value == null) {
+            throw new JSONException("No value for " + name);
+        }
+        return value;
+    }
+
+    private static String readFully(Reader reader) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, read);
+        }
+        return builder.toString();
+    }
+}
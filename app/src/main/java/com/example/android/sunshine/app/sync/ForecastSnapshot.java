@@ -0,0 +1,165 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of the forecast for the preferred location from today on, as it was when the
+ * last sync stored it.  The sync reads it once and hands it to everyone it tells about new
+ * weather (the notification, the wearable, the widgets and Muzei), so that they don't each have to
+ * query the provider for the same few rows.
+ *
+ * Consumers that aren't called by the sync should get it with {@link #getCurrent(String)} and
+ * fall back to querying the provider if there is none.  The snapshot stops being current as
+ * soon as any weather is written after it was taken, so they never show older rows than the
+ * provider has.
+ */
+public class ForecastSnapshot {
+    /**
+     * The columns of {@link #newCursor()}, in order.
+     */
+    public static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    private static final String[] PROJECTION = {
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+    // these indices must match the projection
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int INDEX_SHORT_DESC = 3;
+    private static final int INDEX_MAX_TEMP = 4;
+    private static final int INDEX_MIN_TEMP = 5;
+
+    private static volatile ForecastSnapshot sCurrent;
+
+    /**
+     * One day of the forecast.
+     */
+    public static class Day {
+        public final long id;
+        public final long date;
+        public final int weatherId;
+        public final String shortDesc;
+        public final double maxTemp;
+        public final double minTemp;
+
+        Day(long id, long date, int weatherId, String shortDesc, double maxTemp, double minTemp) {
+            this.id = id;
+            this.date = date;
+            this.weatherId = weatherId;
+            this.shortDesc = shortDesc;
+            this.maxTemp = maxTemp;
+            this.minTemp = minTemp;
+        }
+    }
+
+    public final String locationSetting;
+    // The normalized date of the day the snapshot was taken, which is its first day
+    public final long today;
+    public final List<Day> days;
+    // The provider's weather generation before the days were read
+    private final int generation;
+
+    private ForecastSnapshot(String locationSetting, long today, List<Day> days, int generation) {
+        this.locationSetting = locationSetting;
+        this.today = today;
+        this.days = Collections.unmodifiableList(days);
+        this.generation = generation;
+    }
+
+    /**
+     * Read the forecast for the location from today on.
+     */
+    static ForecastSnapshot load(Context context, String locationSetting) {
+        int generation = WeatherProvider.getWeatherGeneration();
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, today);
+        List<Day> days = new ArrayList<Day>();
+        Cursor cursor = context.getContentResolver().query(weatherUri, PROJECTION, null, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    days.add(new Day(
+                            cursor.getLong(INDEX_ID),
+                            cursor.getLong(INDEX_DATE),
+                            cursor.getInt(INDEX_WEATHER_ID),
+                            cursor.getString(INDEX_SHORT_DESC),
+                            cursor.getDouble(INDEX_MAX_TEMP),
+                            cursor.getDouble(INDEX_MIN_TEMP)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new ForecastSnapshot(locationSetting, today, days, generation);
+    }
+
+    /**
+     * Make the snapshot the one returned by {@link #getCurrent(String)}.
+     */
+    static void publish(ForecastSnapshot snapshot) {
+        sCurrent = snapshot;
+    }
+
+    /**
+     * @return the snapshot the last sync took, if it is for the given location, was taken today
+     *         and no weather has been written since, or null if the caller has to query the
+     *         provider itself
+     */
+    public static ForecastSnapshot getCurrent(String locationSetting) {
+        ForecastSnapshot snapshot = sCurrent;
+        if (snapshot == null || !snapshot.locationSetting.equals(locationSetting)
+                || snapshot.today != WeatherContract.normalizeDate(System.currentTimeMillis())
+                || snapshot.generation != WeatherProvider.getWeatherGeneration()) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return today's forecast, or null if there is none
+     */
+    public Day getToday() {
+        if (days.isEmpty() || days.get(0).date != today) {
+            return null;
+        }
+        return days.get(0);
+    }
+
+    /**
+     * @return the days as a cursor with the {@link #COLUMNS}, for code written against the
+     *         provider's cursors
+     */
+    public Cursor newCursor() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, days.size());
+        for (Day day : days) {
+            cursor.addRow(new Object[]{day.id, day.date, day.weatherId, day.shortDesc,
+                    day.maxTemp, day.minTemp});
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The cache validators from the last forecast we stored for a location: the ETag and
+ * Last-Modified headers the server sent with it, and a hash of the payload in case the server
+ * sends neither.  These are kept in their own preferences file, one set per location setting.
+ */
+class ForecastValidators {
+    private static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_CONTENT_HASH = "content_hash";
+
+    static final ForecastValidators NONE = new ForecastValidators(null, null, null);
+
+    final String etag;
+    final String lastModified;
+    final String contentHash;
+
+    ForecastValidators(String etag, String lastModified, String contentHash) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * @return true if the other validators identify the same stored forecast as these.
+     */
+    boolean sameAs(ForecastValidators other) {
+        return equal(etag, other.etag) && equal(lastModified, other.lastModified)
+                && equal(contentHash, other.contentHash);
+    }
+
+    boolean isEmpty() {
+        return etag == null && lastModified == null && contentHash == null;
+    }
+
+    static ForecastValidators load(Context context, String locationSetting) {
+        SharedPreferences prefs = getPrefs(context);
+        return new ForecastValidators(
+                prefs.getString(key(locationSetting, KEY_ETAG), null),
+                prefs.getString(key(locationSetting, KEY_LAST_MODIFIED), null),
+                prefs.getString(key(locationSetting, KEY_CONTENT_HASH), null));
+    }
+
+    /**
+     * Store these validators for the location.  This should not be called from the UI thread
+     * because it uses commit to write to the shared preferences.
+     */
+    void save(Context context, String locationSetting) {
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        putOrRemove(editor, key(locationSetting, KEY_ETAG), etag);
+        putOrRemove(editor, key(locationSetting, KEY_LAST_MODIFIED), lastModified);
+        putOrRemove(editor, key(locationSetting, KEY_CONTENT_HASH), contentHash);
+        editor.commit();
+    }
+
+    static void clear(Context context, String locationSetting) {
+        NONE.save(context, locationSetting);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String key(String locationSetting, String name) {
+        return name + ":" + locationSetting;
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how many requests may be in flight to any one host at a time, however many fetch
+ * workers there are.
+ */
+class HostPermits {
+    private final int mPermitsPerHost;
+    private final Map<String, Semaphore> mSemaphores = new HashMap<String, Semaphore>();
+
+    HostPermits(int permitsPerHost) {
+        mPermitsPerHost = permitsPerHost;
+    }
+
+    /**
+     * Block until a request to the host may be made.  Each call must be paired with a call to
+     * {@link #release(String)} once the response has been read.
+     */
+    void acquire(String host) throws InterruptedException {
+        getSemaphore(host).acquire();
+    }
+
+    void release(String host) {
+        getSemaphore(host).release();
+    }
+
+    private synchronized Semaphore getSemaphore(String host) {
+        Semaphore semaphore = mSemaphores.get(host);
+        if (semaphore == null) {
+            semaphore = new Semaphore(mPermitsPerHost);
+            mSemaphores.put(host, semaphore);
+        }
+        return semaphore;
+    }
+}
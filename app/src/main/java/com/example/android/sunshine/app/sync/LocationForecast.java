@@ -0,0 +1,132 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The outcome of fetching and parsing the forecast for one location during a sync.  These are
+ * filled in by the fetch workers and then committed to the database together by the sync
+ * adapter.
+ */
+class LocationForecast {
+    final String locationSetting;
+    final boolean useLatLon;
+    final double latitude;
+    final double longitude;
+
+    // OpenWeatherMap's id for the city, from an earlier sync or from this one's response.
+    long cityId;
+
+    // The validators of the forecast we have stored for this location, if any.
+    ForecastValidators previousValidators = ForecastValidators.NONE;
+
+    // How many days, counting from today, are missing or stale in the database.
+    int daysToFetch;
+
+    @SunshineSyncAdapter.LocationStatus
+    int locationStatus = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+
+    // False when the source said the forecast wasn't modified, or it hashed to the same value as
+    // the one we stored last time.  Nothing needs to be written in that case.
+    boolean changed;
+
+    // True when the source was asked and confirmed the forecast we have stored: it said it wasn't
+    // modified, or sent one that hashed to the same value.  False when nothing was asked for.
+    boolean confirmed;
+
+    String cityName;
+    double cityLatitude;
+    double cityLongitude;
+
+    // Every weather column except the location key, which is only known once the location has
+    // been added to the database.
+    final List<ContentValues> weatherValues = new ArrayList<ContentValues>();
+
+    // The 3-hour forecast, in the same form, if it could be fetched.
+    final List<ContentValues> hourlyValues = new ArrayList<ContentValues>();
+
+    String contentHash;
+    String etag;
+    String lastModified;
+
+    // How many days, counting from today, the source has just given us or confirmed, and when.
+    int fetchedDays;
+    long fetchedAt;
+
+    long wireBytes;
+    long decodedBytes;
+
+    // Time spent waiting for the response headers, and reading and parsing the body, over all
+    // of the attempts made for this location
+    long connectMillis;
+    long downloadMillis;
+
+    // How many of the days to be written aren't stored at all yet, as opposed to being stored
+    // with a different forecast.
+    int newDayCount;
+
+    LocationForecast(String locationSetting, boolean useLatLon, double latitude,
+                     double longitude) {
+        this.locationSetting = locationSetting;
+        this.useLatLon = useLatLon;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * @return the coordinates the location is looked up by, to four decimal places, or null if
+     *         it is looked up by its setting
+     */
+    String getCoordinates() {
+        return useLatLon ? String.format(Locale.US, "%.4f,%.4f", latitude, longitude) : null;
+    }
+
+    /**
+     * Forget the result of a failed attempt, before trying again.
+    void resetResult() {
+        locationStatus = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+        cityName = null;
+        weatherValues.clear();
+        hourlyValues.clear();
+        fetchedDays = 0;
+        contentHash = null;
+        etag = null;
+        lastModified = null;
+    }
+
+    /**
+     * Take the result of a request made on behalf of this location and others, by copying it
+     * from the location that made the request.
+     */
+    void copyResultFrom(LocationForecast other) {
+        locationStatus = other.locationStatus;
+        cityId = other.cityId;
+        cityName = other.cityName;
+        cityLatitude = other.cityLatitude;
+        cityLongitude = other.cityLongitude;
+        weatherValues.clear();
+        for (ContentValues values : other.weatherValues) {
+            weatherValues.add(new ContentValues(values));
+        }
+        hourlyValues.clear();
+        for (ContentValues values : other.hourlyValues) {
+            hourlyValues.add(new ContentValues(values));
+        }
+        contentHash = other.contentHash;
+        etag = other.etag;
+        lastModified = other.lastModified;
+        fetchedDays = other.fetchedDays;
+        fetchedAt = other.fetchedAt;
+    }
+
+    /**
+     * @return true if there is a new forecast for this location to store.
+     */
+    boolean hasNewForecast() {
+        return locationStatus == SunshineSyncAdapter.LOCATION_STATUS_OK && changed
+                && !weatherValues.isEmpty();
+    }
+}
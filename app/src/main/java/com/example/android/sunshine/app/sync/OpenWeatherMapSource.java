@@ -0,0 +1,216 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the daily and 3-hour forecasts from the OpenWeatherMap API over HTTP.  The base URL can be pointed
+ * at anything that speaks the same API, such as a stub server on the loopback interface.
+ */
+public class OpenWeatherMapSource implements WeatherSource {
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    public static final String DEFAULT_BASE_URL = "http://api.openweathermap.org/data/2.5/";
+
+    private static final String PATH_FORECAST_DAILY = "forecast/daily";
+    private static final String PATH_FORECAST_HOURLY = "forecast";
+    private static final String QUERY_PARAM = "q";
+    private static final String ID_PARAM = "id";
+    private static final String LAT_PARAM = "lat";
+    private static final String LON_PARAM = "lon";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+
+    // A server that stops answering mid-response would otherwise hold the sync up indefinitely,
+    // cancelled or not.
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    private final String mBaseUrl;
+    private final String mApiKey;
+
+    public OpenWeatherMapSource() {
+        this(DEFAULT_BASE_URL, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+    }
+
+    public OpenWeatherMapSource(String baseUrl, String apiKey) {
+        mBaseUrl = baseUrl;
+        mApiKey = apiKey;
+    }
+
+    @Override
+    public ForecastResponse fetchForecast(ForecastRequest request) throws IOException {
+        return fetch(PATH_FORECAST_DAILY, request, true);
+    }
+
+    @Override
+    public ForecastResponse fetchHourlyForecast(ForecastRequest request) throws IOException {
+        // The 3-hour forecast's "cnt" counts periods rather than days, and we want them all.
+        return fetch(PATH_FORECAST_HOURLY, request, false);
+    }
+
+    private ForecastResponse fetch(String path, ForecastRequest request, boolean limitDays)
+            throws IOException {
+        Uri.Builder uriBuilder = Uri.parse(mBaseUrl).buildUpon()
+                .appendEncodedPath(path);
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        //
+        // Better still is the city id from an earlier response, since that can't be ambiguous
+        // and lets locations that turned out to be the same city share one request.
+        if (request.cityId > 0) {
+            uriBuilder.appendQueryParameter(ID_PARAM, Long.toString(request.cityId));
+        } else if (request.useLatLon) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, String.valueOf(request.latitude))
+                    .appendQueryParameter(LON_PARAM, String.valueOf(request.longitude));
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, request.locationSetting);
+        }
+
+        uriBuilder.appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS);
+        if (limitDays) {
+            uriBuilder.appendQueryParameter(DAYS_PARAM, Integer.toString(request.numDays));
+        }
+        Uri builtUri = uriBuilder.appendQueryParameter(APPID_PARAM, mApiKey)
+                .build();
+
+        URL url = new URL(builtUri.toString());
+
+        // Create the request to OpenWeatherMap, and open the connection
+        final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        // Once the response has been handed back, closing it disconnects; until then, however we
+        // leave, it's up to us.
+        boolean handedBack = false;
+        try {
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            // Ask for a compressed response ourselves rather than leaving it to the platform, so
+            // that we can see how many bytes actually came over the wire.
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if (request.etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", request.etag);
+            }
+            if (request.lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", request.lastModified);
+            }
+            urlConnection.connect();
+
+            int statusCode = urlConnection.getResponseCode();
+            String etag = urlConnection.getHeaderField("ETag");
+            String lastModified = urlConnection.getHeaderField("Last-Modified");
+
+            CountingInputStream wireStream = null;
+            CountingInputStream body = null;
+            if (statusCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                InputStream inputStream = urlConnection.getInputStream();
+                if (inputStream != null) {
+                    wireStream = new CountingInputStream(inputStream);
+                    body = new CountingInputStream(
+                            decodeContent(wireStream, urlConnection.getContentEncoding()));
+                }
+            }
+
+            ForecastResponse response =
+                    new ForecastResponse(statusCode, etag, lastModified, wireStream, body) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        urlConnection.disconnect();
+                    }
+                }
+            };
+            handedBack = true;
+            return response;
+        } finally {
+            if (!handedBack) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    @Override
+    public String getHost() {
+        return Uri.parse(mBaseUrl).getAuthority();
+    }
+
+    /**
+     * Wrap the raw response stream so that it reads the decoded content, according to the
+     * Content-Encoding the server answered with.
+     */
+    static InputStream decodeContent(InputStream in, String contentEncoding)
+            throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return inflate(in);
+        }
+        return in;
+    }
+
+    /**
+     * "deflate" is meant to be zlib-wrapped, but plenty of servers send raw deflate data
+     * instead, so look at the first two bytes for a zlib header before picking the inflater.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int length = 0;
+        while (length < header.length) {
+            int read = pushback.read(header, length, header.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        pushback.unread(header, 0, length);
+
+        if (length < header.length || isZlibHeader(header[0] & 0xff, header[1] & 0xff)) {
+            return new InflaterInputStream(pushback);
+        }
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(pushback, inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Only the stream's own default inflater is ended when it is closed.
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true if the two bytes can start a zlib stream: the deflate method, and a check
+     *         value that makes them a multiple of 31
+     */
+    private static boolean isZlibHeader(int cmf, int flg) {
+        return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+}
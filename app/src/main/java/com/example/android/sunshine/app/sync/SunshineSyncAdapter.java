@@ -3,15 +3,18 @@ package com.example.android.sunshine.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,6 +25,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
@@ -31,10 +35,11 @@ import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastFileCache;
+import com.example.android.sunshine.app.data.LocationIdCache;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.google.android.gms.common.api.ResultCallback;
@@ -43,23 +48,35 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
-    public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
+    private static final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
     // Interval at which to sync with the weather, in seconds.
@@ -68,20 +85,34 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
-
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
+    // Number of days of forecast to ask for
+    static final int NUM_DAYS = 14;
+    // How long a stored day's forecast is trusted before it is fetched again.  The forecast for
+    // the next few days is revised several times a day, the one further out much less often.
+    static final int NEAR_DAYS = 3;
+    static final long NEAR_DAY_STALE_MILLIS = 1000 * 60 * 60 * 2;
+    static final long FAR_DAY_STALE_MILLIS = 1000 * 60 * 60 * 12;
+    // Length of a period of the 3-hour forecast, in seconds
+    private static final long HOURLY_PERIOD_SECONDS = 60 * 60 * 3;
+
+    // Forecasts for the saved locations are fetched in parallel, but we don't want to open more
+    // than a couple of connections to any one host at a time.
+    private static final int MAX_FETCH_THREADS = 4;
+    private static final int MAX_REQUESTS_PER_HOST = 2;
+    private static final ExecutorService sFetchExecutor =
+            Executors.newFixedThreadPool(MAX_FETCH_THREADS);
+    private static final HostPermits sHostPermits = new HostPermits(MAX_REQUESTS_PER_HOST);
+
+    // A request that fails because the server is down or the network is flaky is tried again
+    // after a backoff of about 1, 2, 4... seconds, up to 3 times per request and 6 times per
+    // sync, so that a dead server can't hold the sync up for long.  If it is still down after
+    // that, the framework is asked to leave us alone for a while.
+    private static final int MAX_FETCH_ATTEMPTS = 4;
+    private static final int MAX_RETRIES_PER_SYNC = 6;
+    private static final long RETRY_BASE_DELAY_MILLIS = 1000;
+    private static final long RETRY_MAX_DELAY_MILLIS = 8000;
+    private static final long SERVER_DOWN_DELAY_SECONDS = 60 * 15;
+    private static final Random sRetryJitter = new Random();
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -93,112 +124,445 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    private final WeatherSource mWeatherSource;
+
+    // Set by onSyncCanceled, and checked by every stage of the sync between rows.  Syncs of this
+    // adapter run one at a time, so one flag does.
+    private volatile boolean mCanceled;
+
+    // The result logged for a sync that was canceled before it finished.
+    private static final String RESULT_CANCELED = "canceled";
+
+    /**
+     * Thrown to abandon a stage of the sync once it has been canceled.
+     */
+    private static class SyncCanceledException extends InterruptedIOException {
+        SyncCanceledException() {
+            super("Sync canceled");
+        }
+    }
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        this(context, autoInitialize, new OpenWeatherMapSource());
+    }
+
+    /**
+     * Create a sync adapter that gets its forecasts from the given source, e.g. fixtures served
+     * from a local stub when benchmarking or testing the sync path.
+     */
+    public SunshineSyncAdapter(Context context, boolean autoInitialize, WeatherSource weatherSource) {
         super(context, autoInitialize);
+        mWeatherSource = weatherSource;
+    }
+
+    @Override
+    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, final SyncResult syncResult) {
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+        SyncCoalescer coalescer = SyncCoalescer.getInstance();
+        if (!coalescer.onSyncStarted(preferredLocation,
+                extras.getLong(SyncCoalescer.EXTRA_REQUESTED_AT, 0), System.currentTimeMillis())) {
+            Log.d(LOG_TAG, "Skipping sync, a later one already covered it");
+            return;
+        }
+        boolean finished = false;
+        try {
+            performSync(preferredLocation, syncResult);
+            finished = true;
+        } finally {
+            long followUpAt = coalescer.onSyncFinished(System.currentTimeMillis());
+            if (followUpAt != 0) {
+                requestSync(getContext(), followUpAt);
+            }
+            if (!finished) {
+                // performSync schedules the next sync however it returns, but not if it throws.
+                SyncScheduler.onSyncAborted(getContext());
+            }
+        }
     }
 
+    /**
+     * Stop the running sync as soon as it gets to a point where it can.  The framework calls this
+     * when, for instance, the user changes location mid-sync, and the default implementation
+     * only interrupts the sync thread, which a blocking read or the fetch workers never see.
+     */
     @Override
-    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+    public void onSyncCanceled() {
+        Log.d(LOG_TAG, "Sync canceled");
+        mCanceled = true;
+        super.onSyncCanceled();
+    }
+
+    private boolean isCanceled() {
+        return mCanceled || Thread.currentThread().isInterrupted();
+    }
+
+    private void checkCanceled() throws SyncCanceledException {
+        if (isCanceled()) {
+            throw new SyncCanceledException();
+        }
+    }
+
+    /**
+     * Log the sync as canceled and leave the next one scheduled.  Nothing has been written yet
+     * when this is called, so there is nothing to undo.
+     */
+    private void finishCanceledSync(SyncTimings timings, String stage) {
+        Log.d(LOG_TAG, "Sync canceled while " + stage);
+        Context context = getContext();
+        timings.save(context, RESULT_CANCELED);
+        SyncScheduler.onSyncAborted(context);
+    }
+
+    private void performSync(String preferredLocation, final SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
+        mCanceled = false;
+        SyncTimings timings = new SyncTimings();
 
         // We no longer need just the location String, but also potentially the latitude and
         // longitude, in case we are syncing based on a new Place Picker API result.
         Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        List<LocationForecast> forecasts = new ArrayList<LocationForecast>();
+        for (String locationSetting : Utility.getSavedLocations(context)) {
+            if (locationSetting.equals(preferredLocation)) {
+                forecasts.add(new LocationForecast(locationSetting,
+                        Utility.isLocationLatLonAvailable(context),
+                        Utility.getLocationLatitude(context),
+                        Utility.getLocationLongitude(context)));
+            } else {
+                forecasts.add(new LocationForecast(locationSetting, false, 0, 0));
+            }
+        }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        // Locations that we know map to the same city, or to the same coordinates, only need one
+        // request between them.  OpenWeatherMap has no endpoint that returns the daily forecast
+        // for several cities at once, so that is as far as the requests can be batched.
+        Map<String, List<LocationForecast>> requests =
+                new LinkedHashMap<String, List<LocationForecast>>();
+        for (LocationForecast forecast : forecasts) {
+            forecast.cityId = CityIds.get(context, forecast.locationSetting,
+                    forecast.getCoordinates());
+            forecast.previousValidators = loadValidators(forecast.locationSetting);
+            forecast.daysToFetch = getDaysToFetch(forecast.locationSetting);
+
+            String requestKey = getRequestKey(forecast);
+            List<LocationForecast> group = requests.get(requestKey);
+            if (group == null) {
+                group = new ArrayList<LocationForecast>();
+                requests.put(requestKey, group);
+            }
+            group.add(forecast);
+        }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        // Make every request at once on the worker pool, so that the sync takes about as long
+        // as the slowest request rather than the sum of them.
+        final AtomicInteger retryBudget = new AtomicInteger(MAX_RETRIES_PER_SYNC);
+        List<Callable<Void>> fetches = new ArrayList<Callable<Void>>();
+        for (final List<LocationForecast> group : requests.values()) {
+            fetches.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    fetchForecastGroup(group, retryBudget, syncResult);
+                    return null;
+                }
+            });
+        }
+        timings.add(WeatherContract.SyncLogEntry.COLUMN_LOCATIONS, forecasts.size());
+        timings.add(WeatherContract.SyncLogEntry.COLUMN_REQUESTS, requests.size());
+        long fetchStart = SyncTimings.startPhase();
+        try {
+            sFetchExecutor.invokeAll(fetches);
+        } catch (InterruptedException e) {
+            // Canceled: invokeAll has interrupted the fetches that are still running, and they
+            // stop at the next row they parse.
+            Thread.currentThread().interrupt();
+        }
+        if (isCanceled()) {
+            finishCanceledSync(timings, "fetching");
+            return;
+        }
+        timings.endPhase(WeatherContract.SyncLogEntry.COLUMN_FETCH_MS, fetchStart);
+        Log.d(LOG_TAG, "Made " + requests.size() + " forecast requests for "
+                + forecasts.size() + " locations");
+        for (LocationForecast forecast : forecasts) {
+            timings.add(WeatherContract.SyncLogEntry.COLUMN_CONNECT_MS, forecast.connectMillis);
+            timings.add(WeatherContract.SyncLogEntry.COLUMN_DOWNLOAD_MS, forecast.downloadMillis);
+            timings.add(WeatherContract.SyncLogEntry.COLUMN_WIRE_BYTES, forecast.wireBytes);
+            timings.add(WeatherContract.SyncLogEntry.COLUMN_DECODED_BYTES, forecast.decodedBytes);
+        }
 
+        boolean stored;
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+            stored = storeForecasts(forecasts, syncResult, timings);
+        } catch (SyncCanceledException e) {
+            finishCanceledSync(timings, "comparing");
+            return;
+        }
+
+        boolean serverDown = false;
+        boolean changed = !stored;
+        boolean confirmed = false;
+        String result = stored ? "ok" : "database_error";
+        for (LocationForecast forecast : forecasts) {
+            if (forecast.locationSetting.equals(preferredLocation)) {
+                setLocationStatus(context, forecast.locationStatus);
             }
+            serverDown |= forecast.locationStatus == LOCATION_STATUS_SERVER_DOWN;
+            if (stored && forecast.locationStatus != LOCATION_STATUS_OK) {
+                result = getLocationStatusName(forecast.locationStatus);
+            }
+            // A sync that failed tells us nothing about how stable the forecast is, so it
+            // counts as a change and doesn't stretch the interval.
+            changed |= forecast.changed || forecast.locationStatus != LOCATION_STATUS_OK;
+            confirmed |= forecast.confirmed;
+        }
+        if (isCanceled()) {
+            // Too late to take back the forecasts, but the rest was skipped.
+            result = RESULT_CANCELED;
+        }
+        timings.save(context, result);
+        SyncScheduler.onSyncFinished(context, changed, confirmed);
+        if (serverDown) {
+            // We already retried; let the server recover before the framework tries again.
+            syncResult.delayUntil =
+                    System.currentTimeMillis() / 1000 + SERVER_DOWN_DELAY_SECONDS;
+        }
+    }
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+    /**
+     * Load the validators of the forecast we have stored for the location, if we still have it.
+     */
+    private ForecastValidators loadValidators(String locationSetting) {
+        Context context = getContext();
+        ForecastValidators validators = ForecastValidators.load(context, locationSetting);
+        if (!validators.isEmpty() && !hasStoredForecast(locationSetting)) {
+            // The database was cleared since then, so there is nothing to revalidate.
+            ForecastValidators.clear(context, locationSetting);
+            return ForecastValidators.NONE;
+        }
+        return validators;
+    }
 
-            URL url = new URL(builtUri.toString());
+    /**
+     * @return a key that is the same for locations that can share one forecast request.
+     */
+    private static String getRequestKey(LocationForecast forecast) {
+        if (forecast.cityId > 0) {
+            return "id:" + forecast.cityId;
+        } else if (forecast.useLatLon) {
+            return "coord:" + forecast.getCoordinates();
+        }
+        return "q:" + forecast.locationSetting;
+    }
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+    /**
+     * Make one forecast request on behalf of all of the given locations.  This runs on the fetch
+     * worker pool, so it doesn't touch the database; the results are left in the forecasts for
+     * storeForecasts.
+     */
+    private void fetchForecastGroup(List<LocationForecast> group, AtomicInteger retryBudget,
+                                    SyncResult syncResult) {
+        LocationForecast first = group.get(0);
+
+        // Ask for as many days as the location that is missing the most needs.
+        int numDays = 0;
+        for (LocationForecast forecast : group) {
+            numDays = Math.max(numDays, forecast.daysToFetch);
+        }
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+        // A conditional request only makes sense if everyone sharing it has the same forecast
+        // stored, otherwise "not modified" wouldn't mean the same thing for all of them.
+        ForecastValidators validators = first.previousValidators;
+        for (LocationForecast forecast : group) {
+            if (!forecast.previousValidators.sameAs(validators)) {
+                validators = ForecastValidators.NONE;
+                break;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+        }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        boolean notModified;
+        if (numDays == 0) {
+            // Every stored day is still fresh, so there is nothing to ask for.
+            Log.d(LOG_TAG, "Forecast for " + first.locationSetting + " is fresh");
+            first.locationStatus = LOCATION_STATUS_OK;
+            notModified = true;
+        } else {
+            for (int attempt = 1; ; attempt++) {
+                notModified = fetchForecast(first, validators, numDays);
+                if (first.locationStatus != LOCATION_STATUS_SERVER_DOWN || isCanceled()
+                        || attempt >= MAX_FETCH_ATTEMPTS || retryBudget.getAndDecrement() <= 0) {
+                    break;
+                }
+                long delayMillis = getRetryDelayMillis(attempt);
+                Log.d(LOG_TAG, "Retrying forecast for " + first.locationSetting + " in "
+                        + delayMillis + "ms");
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                first.resetResult();
             }
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+        // Only the outcome counts: a request that succeeded on a retry is no error to the
+        // framework.
+        synchronized (syncResult) {
+            if (first.locationStatus == LOCATION_STATUS_SERVER_DOWN) {
+                syncResult.stats.numIoExceptions++;
+            } else if (first.locationStatus == LOCATION_STATUS_SERVER_INVALID) {
+                syncResult.stats.numParseExceptions++;
+            }
+        }
+
+        // The 3-hour forecast moves on every few hours whether or not the daily one did, so it
+        // is fetched whenever the daily request went through.  It is best effort: without it the
+        // location still gets its daily forecast.
+        if (first.locationStatus == LOCATION_STATUS_OK) {
+            try {
+                fetchHourlyForecast(first);
+            } catch (SyncCanceledException e) {
+                // Whatever was fetched so far is thrown away with the rest of the sync.
+                first.resetResult();
+            }
+        }
+
+        for (LocationForecast forecast : group) {
+            if (forecast != first) {
+                forecast.copyResultFrom(first);
+            }
+            // Same forecast as last time, so skip the write and don't wake anybody up.
+            forecast.changed = !notModified && (forecast.contentHash == null
+                    || !forecast.contentHash.equals(forecast.previousValidators.contentHash));
+            forecast.confirmed = numDays > 0 && !forecast.changed
+                    && forecast.locationStatus == LOCATION_STATUS_OK;
+        }
+    }
+
+    private static String getLocationStatusName(@LocationStatus int locationStatus) {
+        switch (locationStatus) {
+            case LOCATION_STATUS_OK:
+                return "ok";
+            case LOCATION_STATUS_SERVER_DOWN:
+                return "server_down";
+            case LOCATION_STATUS_SERVER_INVALID:
+                return "server_invalid";
+            case LOCATION_STATUS_INVALID:
+                return "location_invalid";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * @return how long to wait before the given retry: exponential in the attempt, capped, and
+     *         jittered so that requests that failed together don't all retry together.
+     */
+    private static long getRetryDelayMillis(int attempt) {
+        long delayMillis = Math.min(RETRY_MAX_DELAY_MILLIS,
+                RETRY_BASE_DELAY_MILLIS << (attempt - 1));
+        return delayMillis / 2 + (long) (sRetryJitter.nextDouble() * (delayMillis / 2));
+    }
+
+    /**
+     * Fetch and parse the first numDays days of the forecast for one location.
+     *
+     * @return true if the source said the forecast hasn't changed since the validators'.
+     */
+    private boolean fetchForecast(LocationForecast forecast, ForecastValidators validators,
+                                  int numDays) {
+        String locationSetting = forecast.locationSetting;
+
+        // These two need to be declared outside the try/catch
+        // so that they can be closed in the finally block.
+        WeatherSource.ForecastResponse response = null;
+        BufferedReader reader = null;
+
+        String host = mWeatherSource.getHost();
+        try {
+            sHostPermits.acquire(host);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            forecast.locationStatus = LOCATION_STATUS_SERVER_DOWN;
+            return false;
+        }
+
+        try {
+            // If we still have the forecast from the last sync, ask the source to only send a new
+            // one if it has changed since.
+            long connectStart = SyncTimings.startPhase();
+            response = mWeatherSource.fetchForecast(new WeatherSource.ForecastRequest(
+                    locationSetting,
+                    forecast.cityId,
+                    forecast.useLatLon,
+                    forecast.latitude,
+                    forecast.longitude,
+                    numDays,
+                    validators.etag,
+                    validators.lastModified));
+            forecast.connectMillis += SyncTimings.elapsedSince(connectStart);
+
+            if (response.isNotModified()) {
+                // What we have is still current, so there is nothing to parse, store or announce.
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " not modified");
+                forecast.locationStatus = LOCATION_STATUS_OK;
+                forecast.fetchedDays = numDays;
+                forecast.fetchedAt = System.currentTimeMillis();
+                return true;
+            }
+
+            // Parse the response straight off the input stream, hashing it as it goes by in case
+            // the server doesn't support conditional requests.
+            InputStream inputStream = response.getBody();
+            if (inputStream == null) {
+                // Nothing to do.
+                return false;
+            }
+            MessageDigest digest = newContentDigest();
+            if (digest != null) {
+                inputStream = new DigestInputStream(inputStream, digest);
+            }
+            // OpenWeatherMap always answers in UTF-8, whatever the platform default is.
+            long downloadStart = SyncTimings.startPhase();
+            reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            getWeatherDataFromJson(reader, forecast);
+            forecast.downloadMillis += SyncTimings.elapsedSince(downloadStart);
+
+            forecast.wireBytes = response.getWireBytes();
+            forecast.decodedBytes = response.getDecodedBytes();
+            Log.d(LOG_TAG, "Forecast transfer for " + locationSetting + ": " + forecast.wireBytes
+                    + " bytes on the wire, " + forecast.decodedBytes + " bytes decoded");
+
+            if (forecast.locationStatus == LOCATION_STATUS_OK) {
+                forecast.fetchedDays = forecast.weatherValues.size();
+                // The days are dated from today, not from the response, so the same response
+                // parsed on another day gives other rows and must not match the stored hash.
+                if (digest != null && !forecast.weatherValues.isEmpty()) {
+                    forecast.contentHash = forecast.weatherValues.get(0).getAsLong(
+                            WeatherContract.WeatherEntry.COLUMN_DATE) + ":"
+                            + toHex(digest.digest());
+                }
+                forecast.etag = response.etag;
+                forecast.lastModified = response.lastModified;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+        } catch (SyncCanceledException e) {
+            // Whatever was parsed so far is thrown away with the rest of the sync.
+            forecast.resetResult();
+        } catch (EOFException e) {
+            // Stream was empty.  No point in parsing.
+            Log.e(LOG_TAG, "Error ", e);
+            forecast.locationStatus = LOCATION_STATUS_SERVER_DOWN;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            forecast.locationStatus = LOCATION_STATUS_SERVER_DOWN;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            forecast.locationStatus = LOCATION_STATUS_SERVER_INVALID;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
             if (reader != null) {
                 try {
                     reader.close();
@@ -206,184 +570,694 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     Log.e(LOG_TAG, "Error closing stream", e);
                 }
             }
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing response", e);
+                }
+            }
+            sHostPermits.release(host);
         }
-        return;
+        return false;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetch and parse the 3-hour forecast for one location into its hourlyValues, leaving them
+     * empty if that fails.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @throws SyncCanceledException if the sync was canceled while the forecast was being read
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+    private void fetchHourlyForecast(final LocationForecast forecast)
+            throws SyncCanceledException {
+        WeatherSource.ForecastResponse response = null;
+        BufferedReader reader = null;
 
-        // These are the names of the JSON objects that need to be extracted.
+        String host = mWeatherSource.getHost();
+        try {
+            sHostPermits.acquire(host);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        try {
+            long connectStart = SyncTimings.startPhase();
+            response = mWeatherSource.fetchHourlyForecast(new WeatherSource.ForecastRequest(
+                    forecast.locationSetting,
+                    forecast.cityId,
+                    forecast.useLatLon,
+                    forecast.latitude,
+                    forecast.longitude,
+                    NUM_DAYS,
+                    null,
+                    null));
+            forecast.connectMillis += SyncTimings.elapsedSince(connectStart);
+
+            InputStream inputStream = response.getBody();
+            if (inputStream == null) {
+                return;
+            }
+            long downloadStart = SyncTimings.startPhase();
+            reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            int messageCode = ForecastJsonParser.parseHourly(reader,
+                    new ForecastJsonParser.HourlyCallback() {
+                        @Override
+                        public void onPeriod(ContentValues hourlyValues) throws IOException {
+                            checkCanceled();
+                            forecast.hourlyValues.add(hourlyValues);
+                        }
+                    });
+            forecast.downloadMillis += SyncTimings.elapsedSince(downloadStart);
+            forecast.wireBytes += response.getWireBytes();
+            forecast.decodedBytes += response.getDecodedBytes();
+
+            if (messageCode != HttpURLConnection.HTTP_OK) {
+                Log.w(LOG_TAG, "No 3-hour forecast for " + forecast.locationSetting + ": "
+                        + messageCode);
+                forecast.hourlyValues.clear();
+            }
+        } catch (SyncCanceledException e) {
+            forecast.hourlyValues.clear();
+            throw e;
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, "Error fetching 3-hour forecast for " + forecast.locationSetting, e);
+            forecast.hourlyValues.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing response", e);
+                }
+            }
+            sHostPermits.release(host);
+        }
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    /**
+     * Read the forecast in JSON Format from the given reader and pull out the days we need to
+     * construct the Strings needed for the wireframes.
+     *
+     * The response is parsed as it streams in (see {@link ForecastJsonParser}), so the only copy
+     * of the forecast we keep around is the rows we are about to insert.
+     */
+    private void getWeatherDataFromJson(Reader forecastReader, final LocationForecast forecast)
+            throws JSONException, IOException {
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        Time dayTime = new Time();
+        dayTime.setToNow();
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        // we start at the day returned by local time. Otherwise this is a mess.
+        final int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
 
-        final String OWM_MESSAGE_CODE = "cod";
+        // now we work exclusively in UTC
+        final Time utcTime = new Time();
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
+        final long fetchedAt = System.currentTimeMillis();
+        forecast.fetchedAt = fetchedAt;
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+        int messageCode = ForecastJsonParser.parse(forecastReader, new ForecastJsonParser.Callback() {
+            @Override
+            public void onCity(long cityId, String cityName, double lat, double lon) {
+                if (cityId > 0) {
+                    forecast.cityId = cityId;
                 }
+                forecast.cityName = cityName;
+                forecast.cityLatitude = lat;
+                forecast.cityLongitude = lon;
             }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+            @Override
+            public void onDay(int dayIndex, ContentValues weatherValues) throws IOException {
+                checkCanceled();
+                // Cheating to convert this to UTC time, which is what we want anyhow
+                long dateTime = utcTime.setJulianDay(julianStartDay + dayIndex);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT, fetchedAt);
+                forecast.weatherValues.add(weatherValues);
+            }
+        });
+
+        // do we have an error?
+        switch (messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                forecast.locationStatus = LOCATION_STATUS_OK;
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                forecast.locationStatus = LOCATION_STATUS_INVALID;
+                forecast.weatherValues.clear();
+                break;
+            default:
+                forecast.locationStatus = LOCATION_STATUS_SERVER_DOWN;
+                forecast.weatherValues.clear();
+                break;
+        }
+    }
+
+    /**
+     * Write every new forecast fetched by this sync to the database in one go, then let everyone
+     * who shows the weather know about it.  Days that are already stored exactly as fetched are
+     * left alone, and if no day changed at all nobody is told anything.
+     *
+     * Until the batch is handed to the provider a cancel abandons the whole thing, so that either
+     * all of the forecasts are written or none are.  After that the consumers that take a while
+     * to tell are skipped.
+     *
+     * @return false if the forecasts couldn't be written
+     * @throws SyncCanceledException if the sync was canceled before anything was written
+     */
+    private boolean storeForecasts(List<LocationForecast> forecasts, SyncResult syncResult,
+                                   SyncTimings timings) throws SyncCanceledException {
+        Context context = getContext();
 
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
+        // The new locations, the changed days and the pruning of old days all go to the provider
+        // as one batch, which it applies in a single transaction with a single round of change
+        // notifications.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        int weatherRowCount = 0;
+        int insertCount = 0;
+        int updateCount = 0;
+        boolean anyCurrent = false;
+        for (LocationForecast forecast : forecasts) {
+            anyCurrent |= forecast.locationStatus == LOCATION_STATUS_OK;
+            // Every day that was fetched again is fresh now, changed or not.  The provider
+            // doesn't announce fetch times, so this alone wakes nobody up.
+            if (forecast.locationStatus != LOCATION_STATUS_OK || forecast.fetchedDays == 0) {
+                continue;
+            }
+            long locationId = getLocationId(forecast.locationSetting);
+            if (locationId != -1) {
+                operations.add(ContentProviderOperation
+                        .newUpdate(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withValue(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT,
+                                forecast.fetchedAt)
+                        .withSelection(WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ?",
+                                new String[]{Long.toString(locationId),
+                                        Long.toString(getForecastDate(0)),
+                                        Long.toString(getForecastDate(forecast.fetchedDays - 1))})
+                        .build());
+            }
+        }
+        for (LocationForecast forecast : forecasts) {
+            checkCanceled();
+            if (!forecast.hasNewForecast()) {
+                continue;
+            }
+            long locationId = getLocationId(forecast.locationSetting);
+            List<ContentValues> days;
+            int locationOperation = -1;
+            if (locationId == -1) {
+                // A location we haven't stored yet: its days refer to it by the id the location
+                // insert earlier in the batch comes back with.
+                locationOperation = operations.size();
+                operations.add(ContentProviderOperation
+                        .newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+                        .withValues(buildLocationValues(forecast.locationSetting,
+                                forecast.cityName, forecast.cityLatitude,
+                                forecast.cityLongitude))
+                        .build());
+                days = forecast.weatherValues;
+                insertCount += 1 + days.size();
+            } else {
+                long diffStart = SyncTimings.startPhase();
+                days = getChangedDays(forecast, locationId);
+                timings.endPhase(WeatherContract.SyncLogEntry.COLUMN_DIFF_MS, diffStart);
+                insertCount += forecast.newDayCount;
+                updateCount += days.size() - forecast.newDayCount;
+            }
+            for (ContentValues weatherValues : days) {
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withValues(weatherValues);
+                if (locationOperation != -1) {
+                    builder.withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                            locationOperation);
+                } else {
+                    builder.withValue(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+                }
+                operations.add(builder.build());
+            }
+            weatherRowCount += days.size();
+        }
 
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+        // delete old data so we don't build up an endless history.  If every request failed,
+        // the past days are all there is to show until one succeeds, so they are kept.
+        if (anyCurrent) {
+            Time dayTime = new Time();
+            dayTime.setToNow();
+            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+            dayTime = new Time();
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))})
+                    .build());
+        }
+        // Last chance to back out without having written anything.
+        checkCanceled();
+        ContentProviderResult[] results;
+        long writeStart = SyncTimings.startPhase();
+        try {
+            results = context.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            // Nothing was written, so don't remember any validators either; the next sync will
+            // fetch everything again.
+            Log.e(LOG_TAG, "Error storing forecasts", e);
+            syncResult.databaseError = true;
+            return false;
+        }
+        timings.endPhase(WeatherContract.SyncLogEntry.COLUMN_WRITE_MS, writeStart);
+        // The pruning is the last operation of the batch, if there is one.
+        int deleteCount = anyCurrent ? results[results.length - 1].count : 0;
+        timings.add(WeatherContract.SyncLogEntry.COLUMN_ROWS_WRITTEN, weatherRowCount);
+        timings.add(WeatherContract.SyncLogEntry.COLUMN_ROWS_DELETED, deleteCount);
+        synchronized (syncResult) {
+            syncResult.stats.numInserts += insertCount;
+            syncResult.stats.numUpdates += updateCount;
+            syncResult.stats.numDeletes += deleteCount;
+        }
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+        // Only remember the validators once the forecast they belong to is stored.  The file
+        // copy goes with them, so that a forecast restored after an upgrade still matches the
+        // validators it is revalidated with.
+        List<String> locationSettings = new ArrayList<String>();
+        for (LocationForecast forecast : forecasts) {
+            locationSettings.add(forecast.locationSetting);
+            if (forecast.hasNewForecast()) {
+                if (forecast.fetchedDays == NUM_DAYS) {
+                    new ForecastValidators(forecast.etag, forecast.lastModified,
+                            forecast.contentHash).save(context, forecast.locationSetting);
+                } else {
+                    // A response cut short to the stale days doesn't describe the whole
+                    // forecast, so neither do its validators or hash.  The ones we had are out of
+                    // date too, now that some of the days have been replaced.
+                    ForecastValidators.clear(context, forecast.locationSetting);
+                }
+                ForecastFileCache.save(context, forecast.locationSetting);
+            }
+        }
+        ForecastFileCache.retain(context, locationSettings);
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        storeHourlyForecasts(forecasts, syncResult, timings);
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+        if (weatherRowCount > 0) {
+            announceForecast(timings);
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + weatherRowCount + " Inserted for "
+                + forecasts.size() + " locations");
+
+        // Remember which city each location resolved to, so the next sync can ask by id.  A
+        // location the server didn't recognize forgets its city.
+        String[] coordinates = new String[forecasts.size()];
+        long[] cityIds = new long[forecasts.size()];
+        for (int i = 0; i < forecasts.size(); i++) {
+            LocationForecast forecast = forecasts.get(i);
+            coordinates[i] = forecast.getCoordinates();
+            cityIds[i] = forecast.locationStatus == LOCATION_STATUS_INVALID ? 0 : forecast.cityId;
+        }
+        CityIds.put(context, locationSettings.toArray(new String[locationSettings.size()]),
+                coordinates, cityIds);
+        return true;
+    }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+    /**
+     * Write the 3-hour forecast of every location we got one for, replacing the periods already
+     * stored, and drop the periods that are over.  The rows of all of the locations go to the
+     * provider as one bulk insert, which it writes in a single transaction.  The daily forecasts
+     * are stored by then, so failing here is logged rather than failing the sync.
+     */
+    private void storeHourlyForecasts(List<LocationForecast> forecasts, SyncResult syncResult,
+                                      SyncTimings timings) {
+        if (isCanceled()) {
+            // The periods we have are left as they were; they go in their own transaction.
+            return;
+        }
+        List<ContentValues> rows = new ArrayList<ContentValues>();
+        for (LocationForecast forecast : forecasts) {
+            if (forecast.locationStatus != LOCATION_STATUS_OK || forecast.hourlyValues.isEmpty()) {
+                continue;
+            }
+            // Locations that are new to this sync were added with its daily forecast.
+            long locationId = getLocationId(forecast.locationSetting);
+            if (locationId == -1) {
+                continue;
+            }
+            for (ContentValues hourlyValues : forecast.hourlyValues) {
+                hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+                rows.add(hourlyValues);
+            }
+        }
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+        ContentResolver resolver = getContext().getContentResolver();
+        // Hold the notifications of the insert and the delete back until both are done, so that
+        // the hourly lists reload once.  The flush needs ContentResolver.call.
+        boolean deferNotifications = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+        Uri hourlyUri = deferNotifications
+                ? WeatherContract.deferNotifications(WeatherContract.HourlyEntry.CONTENT_URI)
+                : WeatherContract.HourlyEntry.CONTENT_URI;
+        long writeStart = SyncTimings.startPhase();
+        try {
+            int insertCount = 0;
+            if (!rows.isEmpty()) {
+                insertCount = resolver.bulkInsert(hourlyUri,
+                        rows.toArray(new ContentValues[rows.size()]));
+            }
+            // Keep the period we are in.
+            long cutoffTime = System.currentTimeMillis() / 1000 - HOURLY_PERIOD_SECONDS;
+            int deleteCount = resolver.delete(hourlyUri,
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " < ?",
+                    new String[]{Long.toString(cutoffTime)});
+
+            timings.add(WeatherContract.SyncLogEntry.COLUMN_ROWS_WRITTEN, insertCount);
+            timings.add(WeatherContract.SyncLogEntry.COLUMN_ROWS_DELETED, deleteCount);
+            synchronized (syncResult) {
+                syncResult.stats.numInserts += insertCount;
+                syncResult.stats.numDeletes += deleteCount;
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error storing 3-hour forecasts", e);
+        } finally {
+            if (deferNotifications) {
+                flushNotifications(resolver);
+            }
+        }
+        timings.endPhase(WeatherContract.SyncLogEntry.COLUMN_WRITE_MS, writeStart);
+    }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void flushNotifications(ContentResolver resolver) {
+        try {
+            resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_FLUSH_NOTIFICATIONS, null, null);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error flushing change notifications", e);
+        }
+    }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+    /**
+     * Work out how much of the forecast the location needs: every day up to the last one that
+     * is missing, or was fetched longer ago than it can be trusted for.  The source always
+     * answers from today on, so fresh days before that one are fetched again anyway.
+     *
+     * @return the number of days to fetch, counting from today, or 0 if every day is fresh
+     */
+    private int getDaysToFetch(String locationSetting) {
+        long locationId = getLocationId(locationSetting);
+        if (locationId == -1) {
+            return NUM_DAYS;
+        }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+        Map<Long, Long> fetchTimes = new HashMap<Long, Long>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.buildLocationWeatherWithStartDate(locationId,
+                        getForecastDate(0)),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE,
+                        WeatherContract.WeatherEntry.COLUMN_FETCHED_AT},
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return NUM_DAYS;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                fetchTimes.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
 
-                double high;
-                double low;
+        long[] fetchedAt = new long[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            Long dayFetchedAt = fetchTimes.get(getForecastDate(i));
+            if (dayFetchedAt != null) {
+                fetchedAt[i] = dayFetchedAt;
+            }
+        }
+        int daysToFetch = computeDaysToFetch(fetchedAt, System.currentTimeMillis());
+        Log.d(LOG_TAG, "Need " + daysToFetch + " days of forecast for " + locationSetting);
+        return daysToFetch;
+    }
 
-                String description;
-                int weatherId;
+    /**
+     * @param fetchedAt when each day of the forecast, counting from today, was fetched, or 0 if
+     *                  it isn't stored
+     * @return the number of days to ask for: up to and including the last stale one
+     */
+    static int computeDaysToFetch(long[] fetchedAt, long now) {
+        int daysToFetch = 0;
+        for (int i = 0; i < fetchedAt.length; i++) {
+            long staleMillis = i < NEAR_DAYS ? NEAR_DAY_STALE_MILLIS : FAR_DAY_STALE_MILLIS;
+            if (now - fetchedAt[i] >= staleMillis) {
+                daysToFetch = i + 1;
+            }
+        }
+        return daysToFetch;
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * @return the normalized date of the given day of the forecast, counting from today, the
+     *         way the provider stores it
+     */
+    private static long getForecastDate(int dayIndex) {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        return WeatherContract.normalizeDate(new Time().setJulianDay(julianStartDay + dayIndex));
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * Compare the forecast with the days stored for the location.
+     *
+     * @return the days of the forecast that are missing or different in the database
+     */
+    private List<ContentValues> getChangedDays(LocationForecast forecast, long locationId) {
+        // Every row has the same columns, so ask for just those.  A day that was only fetched
+        // again hasn't changed.
+        List<String> columns = new ArrayList<String>(forecast.weatherValues.get(0).keySet());
+        columns.remove(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        columns.remove(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT);
+        String[] projection = columns.toArray(new String[columns.size()]);
+
+        // Normalize the dates the way the provider will, so they can be compared with the
+        // stored ones.  The days are copied first: the forecast's own values are shared with
+        // whoever else reads the result.
+        List<ContentValues> incoming = new ArrayList<ContentValues>(forecast.weatherValues.size());
+        long firstDate = Long.MAX_VALUE;
+        for (ContentValues weatherValues : forecast.weatherValues) {
+            ContentValues day = new ContentValues(weatherValues);
+            long date = WeatherContract.normalizeDate(
+                    day.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+            day.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+            incoming.add(day);
+            firstDate = Math.min(firstDate, date);
+        }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.buildLocationWeatherWithStartDate(locationId,
+                        firstDate),
+                projection,
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            forecast.newDayCount = incoming.size();
+            return incoming;
+        }
+        List<ContentValues> changedDays = new ArrayList<ContentValues>();
+        forecast.newDayCount = 0;
+        try {
+            int dateIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+            Map<Long, Integer> storedPositions = new HashMap<Long, Integer>();
+            while (cursor.moveToNext()) {
+                storedPositions.put(cursor.getLong(dateIndex), cursor.getPosition());
+            }
+            for (ContentValues weatherValues : incoming) {
+                Integer position = storedPositions.get(
+                        weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                if (position == null) {
+                    changedDays.add(weatherValues);
+                    forecast.newDayCount++;
+                } else if (!cursor.moveToPosition(position)
+                        || !isStored(weatherValues, cursor, projection)) {
+                    changedDays.add(weatherValues);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(LOG_TAG, changedDays.size() + " of " + incoming.size() + " days changed for "
+                + forecast.locationSetting);
+        return changedDays;
+    }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    /**
+     * @return true if the cursor's current row holds the same value as the weather values for
+     *         every one of the columns
+     */
+    private static boolean isStored(ContentValues weatherValues, Cursor cursor, String[] columns) {
+        for (int i = 0; i < columns.length; i++) {
+            Object value = weatherValues.get(columns[i]);
+            if (value == null) {
+                if (!cursor.isNull(i)) {
+                    return false;
+                }
+            } else if (cursor.isNull(i)) {
+                return false;
+            } else if (value instanceof Double || value instanceof Float) {
+                if (((Number) value).doubleValue() != cursor.getDouble(i)) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                if (((Number) value).longValue() != cursor.getLong(i)) {
+                    return false;
+                }
+            } else if (!value.toString().equals(cursor.getString(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    /**
+     * Check whether we still have today's forecast for the location, i.e. whether there is
+     * anything for a conditional request to revalidate.
+     */
+    private boolean hasStoredForecast(String locationSetting) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = getContext().getContentResolver().query(weatherUri,
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    private MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(LOG_TAG, "Unable to hash the forecast", e);
+            return null;
+        }
+    }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-            }
-
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
 
+    /**
+     * Tell everyone who shows the weather about the new forecast.  They all get the same snapshot
+     * of it, read once here, and are told at the same time on the worker pool, which is idle now
+     * that the forecasts have been fetched.
+     */
+    private void announceForecast(SyncTimings timings) {
+        Context context = getContext();
+        final ForecastSnapshot snapshot =
+                ForecastSnapshot.load(context, Utility.getPreferredLocation(context));
+        // The widgets and Muzei pick it up from here when they get our broadcast.
+        ForecastSnapshot.publish(snapshot);
+
+        List<Callable<Void>> targets = new ArrayList<Callable<Void>>();
+        targets.add(new AnnouncementTarget(WeatherContract.SyncLogEntry.COLUMN_WIDGETS_MS, timings) {
+            @Override
+            void announce() {
                 updateWidgets();
+            }
+
+            @Override
+            boolean isSkippedWhenCanceled() {
+                // Only a broadcast, and it keeps the widgets in step with the database.
+                return false;
+            }
+        });
+        targets.add(new AnnouncementTarget(WeatherContract.SyncLogEntry.COLUMN_MUZEI_MS, timings) {
+            @Override
+            void announce() {
                 updateMuzei();
-                notifyWeather();
-                notifyWearable();
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        });
+        targets.add(new AnnouncementTarget(WeatherContract.SyncLogEntry.COLUMN_NOTIFICATION_MS, timings) {
+            @Override
+            void announce() {
+                notifyWeather(snapshot.getToday());
+            }
+        });
+        targets.add(new AnnouncementTarget(WeatherContract.SyncLogEntry.COLUMN_WEARABLE_MS, timings) {
+            @Override
+            void announce() {
+                notifyWearable(snapshot.getToday());
+            }
+        });
+        try {
+            sFetchExecutor.invokeAll(targets);
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted telling everyone about the new weather", e);
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * One of the things announceForecast does, timed into the given sync log column.
+     */
+    private abstract class AnnouncementTarget implements Callable<Void> {
+        private final String mTimingColumn;
+        private final SyncTimings mTimings;
+
+        AnnouncementTarget(String timingColumn, SyncTimings timings) {
+            mTimingColumn = timingColumn;
+            mTimings = timings;
+        }
+
+        abstract void announce();
+
+        boolean isSkippedWhenCanceled() {
+            return true;
+        }
+
+        @Override
+        public Void call() {
+            if (isSkippedWhenCanceled() && isCanceled()) {
+                Log.d(LOG_TAG, "Sync canceled, skipping " + mTimingColumn);
+                return null;
+            }
+            long start = SyncTimings.startPhase();
+            try {
+                announce();
+            } catch (RuntimeException e) {
+                // One of them failing is no reason to keep the news from the others.
+                Log.e(LOG_TAG, "Error in " + mTimingColumn, e);
+            }
+            mTimings.endPhase(mTimingColumn, start);
+            return null;
         }
     }
 
@@ -405,7 +1279,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void notifyWeather() {
+    private void notifyWeather(ForecastSnapshot.Day today) {
         Context context = getContext();
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -420,18 +1294,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != null) {
+                    int weatherId = today.weatherId;
+                    double high = today.maxTemp;
+                    double low = today.minTemp;
+                    String desc = today.shortDesc;
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -507,21 +1374,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
 
 
-    private void notifyWearable() {
-        String locationQuery = Utility.getPreferredLocation(getContext());
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-        Cursor cursor = getContext().getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-        if (cursor != null && cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double highTemp = cursor.getDouble(INDEX_MAX_TEMP);
-            double lowTemp = cursor.getDouble(INDEX_MIN_TEMP);
+    private void notifyWearable(ForecastSnapshot.Day today) {
+        if (today != null) {
+            int weatherId = today.weatherId;
+            double highTemp = today.maxTemp;
+            double lowTemp = today.minTemp;
 
             PutDataMapRequest dataMap = PutDataMapRequest.create("/weather_update");
             dataMap.getDataMap().putString("high_temp", Utility.formatTemperature(getContext(), highTemp));
@@ -541,58 +1403,53 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                       }
                   }
               });
-            cursor.close();
         }
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * @return the row ID of the location, or -1 if it isn't in the weather database yet.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+    private long getLocationId(String locationSetting) {
+        long locationId = LocationIdCache.get(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
 
-        // First, check if the location with this city name exists in the db
+        int generation = LocationIdCache.getGeneration();
         Cursor locationCursor = getContext().getContentResolver().query(
                 WeatherContract.LocationEntry.CONTENT_URI,
                 new String[]{WeatherContract.LocationEntry._ID},
                 WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
                 new String[]{locationSetting},
                 null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+        if (locationCursor == null) {
+            return -1;
+        }
+        try {
+            if (locationCursor.moveToFirst()) {
+                int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
+                locationId = locationCursor.getLong(locationIdIndex);
+                LocationIdCache.put(locationSetting, locationId, generation);
+            }
+            return locationId;
+        } finally {
+            locationCursor.close();
         }
+    }
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+    private static ContentValues buildLocationValues(String locationSetting, String cityName,
+                                                     double lat, double lon) {
+        // Now that the content provider is set up, inserting rows of data is pretty simple.
+        // First create a ContentValues object to hold the data you want to insert.
+        ContentValues locationValues = new ContentValues();
+
+        // Then add the data, along with the corresponding name of the data type,
+        // so the content provider knows what kind of value is being inserted.
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
     }
 
     /**
@@ -615,13 +1472,38 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Sync now if a forecast fetched at the given time is due to be fetched again, for screens
+     * that may be showing a forecast restored from the file cache rather than a fresh one.
+     */
+    public static void syncIfStale(Context context, long fetchedAt) {
+        if (System.currentTimeMillis() - fetchedAt >= NEAR_DAY_STALE_MILLIS) {
+            Log.d(LOG_TAG, "Showing a stale forecast, revalidating");
+            syncImmediately(context);
+        }
+    }
+
+    /**
+     * Helper method to have the sync adapter sync immediately, unless a sync that is waiting to
+     * start or already running will fetch the preferred location anyway.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        long requestedAt = SyncCoalescer.getInstance().onSyncRequested(
+                Utility.getPreferredLocation(context), System.currentTimeMillis());
+        if (requestedAt != 0) {
+            requestSync(context, requestedAt);
+        }
+    }
+
+    /**
+     * Ask the framework for an expedited sync, for a request SyncCoalescer let through at the
+     * given time.
+     */
+    private static void requestSync(Context context, long requestedAt) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putLong(SyncCoalescer.EXTRA_REQUESTED_AT, requestedAt);
         ContentResolver.requestSync(getSyncAccount(context),
                 context.getString(R.string.content_authority), bundle);
     }
@@ -669,7 +1551,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        SyncScheduler.schedule(context);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -0,0 +1,34 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.ContentResolver;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+/**
+ * Runs the sync job that SyncScheduler schedules on Lollipop and up.  The job only asks the sync
+ * manager for a sync, so the sync itself still runs in the sync adapter, and the sync adapter
+ * schedules the next job when it is done.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SunshineSyncJobService extends JobService {
+    private static final String LOG_TAG = SunshineSyncJobService.class.getSimpleName();
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Log.d(LOG_TAG, "Sync job started");
+        ContentResolver.requestSync(SunshineSyncAdapter.getSyncAccount(this),
+                getString(R.string.content_authority), new Bundle());
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+/**
+ * Keeps track of the sync that has been asked for and the one that is running, so that asking
+ * for a sync that one of them is going to do anyway costs nothing.
+ *
+ * Requests are keyed by the location they are for.  A sync reads the preferred location when it
+ * starts, so while one is still waiting to start, a request for any location is folded into it:
+ * a quick series of location changes ends up as one sync of the last location.  A request for the
+ * location the running sync is already fetching waits for it to finish: the sync may have read
+ * that location's settings, e.g. its coordinates, before they changed, so it is followed by one
+ * more sync however many such requests came in.
+ *
+ * The framework may still start a request we have since made redundant, e.g. after a periodic
+ * sync got in first.  Each request carries the time it was made, and the sync adapter skips it if
+ * a sync has started since then, since that sync read the location after it was asked for.
+ */
+class SyncCoalescer {
+    private static final String LOG_TAG = SyncCoalescer.class.getSimpleName();
+
+    // The extra of the sync request that holds the time it was made
+    static final String EXTRA_REQUESTED_AT = "requested_at";
+
+    // A request that still hasn't started after this long is taken to have been dropped, so
+    // that the next one is passed on to the framework.
+    static final long PENDING_TIMEOUT_MILLIS = 1000 * 60 * 10;
+
+    private static final SyncCoalescer sInstance = new SyncCoalescer();
+
+    private String mPendingLocation;
+    private long mPendingSince;
+    private String mRunningLocation;
+    private boolean mFollowUpRequested;
+    private long mLastStartedAt;
+
+    static SyncCoalescer getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Record that a sync of the location has been asked for.
+     *
+     * @return the time to pass along with a new sync request, or 0 if there is no need for one
+     */
+    synchronized long onSyncRequested(String location, long now) {
+        if (mPendingLocation != null && now - mPendingSince < PENDING_TIMEOUT_MILLIS) {
+            Log.d(LOG_TAG, "Folding sync of " + location + " into the waiting sync of "
+                    + mPendingLocation);
+            mPendingLocation = location;
+            return 0;
+        }
+        if (location.equals(mRunningLocation)) {
+            Log.d(LOG_TAG, "Sync of " + location + " is already running, syncing again after it");
+            mFollowUpRequested = true;
+            return 0;
+        }
+        mPendingLocation = location;
+        mPendingSince = now;
+        return now;
+    }
+
+    /**
+     * Record that a sync of the location is starting.
+     *
+     * @param requestedAt when the sync was asked for, or 0 if it didn't come from
+     *                    {@link #onSyncRequested(String, long)}, like periodic syncs
+     * @return false if a sync that started after the request already did what it asked for
+     */
+    synchronized boolean onSyncStarted(String location, long requestedAt, long now) {
+        if (requestedAt != 0 && requestedAt < mLastStartedAt) {
+            return false;
+        }
+        mPendingLocation = null;
+        mRunningLocation = location;
+        mFollowUpRequested = false;
+        mLastStartedAt = now;
+        return true;
+    }
+
+    /**
+     * Record that the running sync is done.
+     *
+     * @return the time to pass along with a new sync request, if the location was asked for
+     *         again while the sync was running and no other sync is waiting to start, or 0
+     */
+    synchronized long onSyncFinished(long now) {
+        String location = mRunningLocation;
+        mRunningLocation = null;
+        if (!mFollowUpRequested) {
+            return 0;
+        }
+        mFollowUpRequested = false;
+        if (mPendingLocation != null && now - mPendingSince < PENDING_TIMEOUT_MILLIS) {
+            // The waiting sync reads the location when it starts, so it covers the request.
+            return 0;
+        }
+        mPendingLocation = location;
+        mPendingSince = now;
+        return now;
+    }
+}
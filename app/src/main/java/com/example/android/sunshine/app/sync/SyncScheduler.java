@@ -0,0 +1,257 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Picks when the next sync should happen, instead of syncing every SYNC_INTERVAL no matter what.
+ *
+ * The interval doubles for every sync in a row that found the forecast unchanged, up to
+ * MAX_INTERVAL, and goes back to SYNC_INTERVAL as soon as one finds a change or a weather alert is
+ * pushed to us.  While the app is in the foreground it is at most FOREGROUND_INTERVAL, and it is
+ * cut short so that a sync lands just after midnight, when "today" moves on to the next day of the
+ * forecast.
+ *
+ * On Lollipop and up the interval counts from the end of the last sync, so that the app coming
+ * to the foreground and leaving it again only moves the next sync between the two intervals,
+ * rather than putting it off every time.  Nothing is rescheduled if the next sync would stay
+ * where it is.
+ *
+ * On Lollipop and up the sync is scheduled as a job that waits for an unmetered network and a
+ * charger within the flex window around the interval, but runs at the end of the window whether
+ * or not it got them.  Every sync that ran from the job schedules the next one when it ends,
+ * however it ends.  Older devices get a plain periodic sync with the chosen interval.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_schedule";
+    private static final String KEY_UNCHANGED_STREAK = "unchanged_streak";
+    // When the last sync ended, in milliseconds since the epoch
+    private static final String KEY_LAST_SYNC_AT = "last_sync_at";
+    // When the scheduled sync is due, in milliseconds since the epoch, or the interval of the
+    // periodic sync before Lollipop
+    private static final String KEY_SCHEDULED_AT = "scheduled_at";
+    private static final String KEY_SCHEDULED_INTERVAL = "scheduled_interval";
+
+    private static final int SYNC_JOB_ID = 1;
+
+    // In seconds, like SYNC_INTERVAL
+    static final long MIN_INTERVAL = 60 * 15;
+    static final long FOREGROUND_INTERVAL = 60 * 60;
+    static final long MAX_INTERVAL = 60 * 60 * 12;
+    // How long after midnight the rollover sync should happen, to be clear of it
+    static final long ROLLOVER_MARGIN = 60 * 5;
+
+    private static volatile boolean sForeground;
+
+    // Reschedules for the app coming and going, which looks up the sync account, off the UI
+    // thread and in the order they happened.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Record how the sync that just finished went and schedule the next one.  This should not be
+     * called from the UI thread because it uses commit to write to the shared preferences.
+     *
+     * @param forecastChanged true if any forecast was different from the one stored before
+     * @param forecastConfirmed true if the source confirmed at least one stored forecast, by
+     *                          saying it wasn't modified or sending the same one again.  A sync
+     *                          that found every day fresh and asked for nothing tells us nothing
+     *                          about how stable the forecast is, so it leaves the streak alone.
+     */
+    static void onSyncFinished(Context context, boolean forecastChanged,
+                               boolean forecastConfirmed) {
+        SharedPreferences prefs = getPrefs(context);
+        int unchangedStreak = computeUnchangedStreak(prefs.getInt(KEY_UNCHANGED_STREAK, 0),
+                forecastChanged, forecastConfirmed);
+        prefs.edit()
+                .putInt(KEY_UNCHANGED_STREAK, unchangedStreak)
+                .putLong(KEY_LAST_SYNC_AT, System.currentTimeMillis())
+                .commit();
+        schedule(context, true);
+    }
+
+    /**
+     * @return the number of syncs in a row that found the forecast unchanged, after one that
+     *         found a change, confirmed a stored forecast, or neither
+     */
+    static int computeUnchangedStreak(int unchangedStreak, boolean forecastChanged,
+                                      boolean forecastConfirmed) {
+        if (forecastChanged) {
+            return 0;
+        }
+        return forecastConfirmed ? unchangedStreak + 1 : unchangedStreak;
+    }
+
+    /**
+     * Schedule the next sync after one that was canceled or failed, leaving the interval as it
+     * was.  On Lollipop and up the job that started the sync is used up, so without this there
+     * would be no next sync at all.  Not to be called from the UI thread either.
+     */
+    static void onSyncAborted(Context context) {
+        getPrefs(context).edit().putLong(KEY_LAST_SYNC_AT, System.currentTimeMillis()).commit();
+        schedule(context, true);
+    }
+
+    /**
+     * Call when the app comes to the foreground or leaves it, so that syncs are more frequent
+     * while the user is looking.  The next sync is rescheduled in the background, and only if
+     * the change moves it.
+     */
+    public static void setForeground(Context context, boolean foreground) {
+        if (sForeground != foreground) {
+            sForeground = foreground;
+            final Context appContext = context.getApplicationContext();
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    schedule(appContext);
+                }
+            });
+        }
+    }
+
+    /**
+     * Call when a weather alert is pushed to us: the forecast is probably about to change, so
+     * sync now and go back to the normal interval.
+     */
+    public static void onPushAlert(Context context) {
+        getPrefs(context).edit().putInt(KEY_UNCHANGED_STREAK, 0).apply();
+        SunshineSyncAdapter.syncImmediately(context);
+        schedule(context);
+    }
+
+    /**
+     * Schedule the next sync for the current conditions, unless it is scheduled for then already.
+     */
+    public static void schedule(Context context) {
+        schedule(context, false);
+    }
+
+    /**
+     * @param replace true to schedule the sync even if one is scheduled for the same time, when
+     *                that one has just run
+     */
+    private static synchronized void schedule(Context context, boolean replace) {
+        SharedPreferences prefs = getPrefs(context);
+        int unchangedStreak = prefs.getInt(KEY_UNCHANGED_STREAK, 0);
+        long now = System.currentTimeMillis();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            long lastSyncAt = prefs.getLong(KEY_LAST_SYNC_AT, now);
+            long secondsSinceLastSync = Math.max(0, (now - lastSyncAt) / 1000);
+            long interval = computeInterval(unchangedStreak, sForeground,
+                    secondsSinceLastSync + getSecondsUntilRollover());
+            long flex = interval / 3;
+            long delay = computeDelay(interval, secondsSinceLastSync);
+            long scheduledAt = now + delay * 1000;
+            long previousScheduledAt = prefs.getLong(KEY_SCHEDULED_AT, 0);
+            // A job that is already due runs as soon as it can, however it's rescheduled.
+            if (!replace && isJobPending(context) && (previousScheduledAt <= now
+                    || Math.abs(scheduledAt - previousScheduledAt) < 1000)) {
+                return;
+            }
+            Log.d(LOG_TAG, "Next sync in " + delay + "s (flex " + flex + "s)");
+            scheduleJob(context, delay, Math.min(flex, delay));
+            prefs.edit().putLong(KEY_SCHEDULED_AT, scheduledAt).commit();
+        } else {
+            long interval = computeInterval(unchangedStreak, sForeground,
+                    getSecondsUntilRollover());
+            long flex = interval / 3;
+            // The periodic sync keeps running at its interval until the interval changes.
+            if (interval == prefs.getLong(KEY_SCHEDULED_INTERVAL, 0)) {
+                return;
+            }
+            Log.d(LOG_TAG, "Next sync in " + interval + "s (flex " + flex + "s)");
+            SunshineSyncAdapter.configurePeriodicSync(context, (int) interval, (int) flex);
+            prefs.edit().putLong(KEY_SCHEDULED_INTERVAL, interval).commit();
+        }
+    }
+
+    /**
+     * @return the interval in seconds until the next sync
+     */
+    static long computeInterval(int unchangedStreak, boolean foreground,
+                                long secondsUntilRollover) {
+        long interval = SunshineSyncAdapter.SYNC_INTERVAL;
+        for (int i = 0; i < unchangedStreak && interval < MAX_INTERVAL; i++) {
+            interval *= 2;
+        }
+        interval = Math.min(interval, MAX_INTERVAL);
+        if (foreground) {
+            interval = Math.min(interval, FOREGROUND_INTERVAL);
+        }
+        interval = Math.min(interval, secondsUntilRollover + ROLLOVER_MARGIN);
+        return Math.max(interval, MIN_INTERVAL);
+    }
+
+    /**
+     * @return the delay in seconds until the next sync, given the interval from the last one
+     */
+    static long computeDelay(long interval, long secondsSinceLastSync) {
+        return Math.max(0, interval - secondsSinceLastSync);
+    }
+
+    private static long getSecondsUntilRollover() {
+        Calendar midnight = Calendar.getInstance();
+        long now = midnight.getTimeInMillis();
+        midnight.add(Calendar.DAY_OF_YEAR, 1);
+        midnight.set(Calendar.HOUR_OF_DAY, 0);
+        midnight.set(Calendar.MINUTE, 0);
+        midnight.set(Calendar.SECOND, 0);
+        midnight.set(Calendar.MILLISECOND, 0);
+        return (midnight.getTimeInMillis() - now) / 1000;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context, long delay, long flex) {
+        // The job replaces the periodic sync, rather than running on top of it.
+        ContentResolver.removePeriodicSync(SunshineSyncAdapter.getSyncAccount(context),
+                context.getString(R.string.content_authority), new Bundle());
+
+        JobInfo job = new JobInfo.Builder(SYNC_JOB_ID,
+                new ComponentName(context, SunshineSyncJobService.class))
+                .setMinimumLatency((delay - flex) * 1000)
+                .setOverrideDeadline(delay * 1000)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.schedule(job);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isJobPending(Context context) {
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+            if (job.getId() == SYNC_JOB_ID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * Collects how long each phase of one sync took, along with what it moved, and writes it to the
+ * sync log when the sync ends.  Durations are measured with elapsed realtime, so they aren't
+ * thrown off by the wall clock being changed mid-sync.
+ */
+class SyncTimings {
+    private static final String LOG_TAG = SyncTimings.class.getSimpleName();
+
+    private final long mStartedMillis = System.currentTimeMillis();
+    private final long mStartRealtime = SystemClock.elapsedRealtime();
+    private final ContentValues mValues = new ContentValues();
+
+    /**
+     * @return the start of a phase, to be passed to {@link #endPhase(String, long)}
+     */
+    static long startPhase() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    static long elapsedSince(long phaseStart) {
+        return SystemClock.elapsedRealtime() - phaseStart;
+    }
+
+    /**
+     * Add the time since the phase started to the given sync log column.
+     */
+    synchronized void endPhase(String column, long phaseStart) {
+        add(column, elapsedSince(phaseStart));
+    }
+
+    synchronized void add(String column, long amount) {
+        Long total = mValues.getAsLong(column);
+        mValues.put(column, (total != null ? total : 0) + amount);
+    }
+
+    /**
+     * Write the sync's entry to the sync log.  Losing an entry is better than failing the sync,
+     * so errors are only logged.
+     */
+    synchronized void save(Context context, String result) {
+        mValues.put(WeatherContract.SyncLogEntry.COLUMN_STARTED, mStartedMillis);
+        mValues.put(WeatherContract.SyncLogEntry.COLUMN_RESULT, result);
+        mValues.put(WeatherContract.SyncLogEntry.COLUMN_TOTAL_MS,
+                SystemClock.elapsedRealtime() - mStartRealtime);
+        Log.d(LOG_TAG, "Sync timings: " + mValues);
+        try {
+            context.getContentResolver().insert(WeatherContract.SyncLogEntry.CONTENT_URI, mValues);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error saving sync timings", e);
+        }
+    }
+}
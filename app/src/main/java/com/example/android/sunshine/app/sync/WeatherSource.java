@@ -0,0 +1,117 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Somewhere the sync adapter can get a daily and a 3-hour forecast from.  The forecasts are
+ * returned in the OpenWeatherMap JSON format, which is what {@link ForecastJsonParser}
+ * understands.
+ */
+public interface WeatherSource {
+
+    /**
+     * Fetch the forecast described by the request.
+     */
+    ForecastResponse fetchForecast(ForecastRequest request) throws IOException;
+
+    /**
+     * Fetch the 3-hour forecast for the location described by the request, for as far ahead as
+     * the source has one.  The number of days asked for doesn't apply.
+     */
+    ForecastResponse fetchHourlyForecast(ForecastRequest request) throws IOException;
+
+    /**
+     * @return the host requests are sent to, so that concurrent requests to it can be limited.
+     */
+    String getHost();
+
+    /**
+     * What forecast to fetch, plus the validators from the last time it was fetched.
+     */
+    class ForecastRequest {
+        public final String locationSetting;
+        // OpenWeatherMap's id for the location's city, or 0 if we don't know it yet.  When known
+        // it is used in place of the coordinates or the location setting.
+        public final long cityId;
+        // If set, the latitude and longitude are used instead of the location setting.
+        public final boolean useLatLon;
+        public final double latitude;
+        public final double longitude;
+        public final int numDays;
+        public final String etag;
+        public final String lastModified;
+
+        public ForecastRequest(String locationSetting, long cityId, boolean useLatLon,
+                               double latitude, double longitude, int numDays, String etag,
+                               String lastModified) {
+            this.locationSetting = locationSetting;
+            this.cityId = cityId;
+            this.useLatLon = useLatLon;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.numDays = numDays;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The answer to a {@link ForecastRequest}.  This must be closed once the body has been read.
+     */
+    class ForecastResponse implements Closeable {
+        public final int statusCode;
+        public final String etag;
+        public final String lastModified;
+
+        private final CountingInputStream mWireStream;
+        private final CountingInputStream mBody;
+
+        /**
+         * @param wireStream the response as it was received, or null if it had no body
+         * @param body the decoded response read through wireStream, or null if it had no body
+         */
+        public ForecastResponse(int statusCode, String etag, String lastModified,
+                                CountingInputStream wireStream, CountingInputStream body) {
+            this.statusCode = statusCode;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            mWireStream = wireStream;
+            mBody = body;
+        }
+
+        public boolean isNotModified() {
+            return statusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * @return the decoded forecast, or null if the response had none.
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return the number of bytes of the response received so far
+         */
+        public long getWireBytes() {
+            return mWireStream != null ? mWireStream.getCount() : 0;
+        }
+
+        /**
+         * @return the number of bytes of the decoded forecast read so far
+         */
+        public long getDecodedBytes() {
+            return mBody != null ? mBody.getCount() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mBody != null) {
+                mBody.close();
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ import com.bumptech.glide.request.target.Target;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastSnapshot;
 
 import java.util.concurrent.ExecutionException;
 
@@ -61,8 +62,15 @@ public class DetailWidgetRemoteViewsService extends RemoteViewsService {
                 // However, our ContentProvider is not exported so it doesn't have access to the
                 // data. Therefore we need to clear (and finally restore) the calling identity so
                 // that calls use our process and permission
-                final long identityToken = Binder.clearCallingIdentity();
                 String location = Utility.getPreferredLocation(DetailWidgetRemoteViewsService.this);
+                // If a sync just told us about new weather, it left a snapshot of it behind
+                // whose columns match our projection, and we don't need to query at all.
+                ForecastSnapshot snapshot = ForecastSnapshot.getCurrent(location);
+                if (snapshot != null) {
+                    data = snapshot.newCursor();
+                    return;
+                }
+                final long identityToken = Binder.clearCallingIdentity();
                 Uri weatherForLocationUri = WeatherContract.WeatherEntry
                         .buildWeatherLocationWithStartDate(location, System.currentTimeMillis());
                 data = getContentResolver().query(weatherForLocationUri,